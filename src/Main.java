@@ -1,3 +1,4 @@
+import cli.CommandLine;
 import gui.windows.Gui;
 
 
@@ -6,7 +7,6 @@ public class Main {
 	
 	/*
 	 * TODO:
-	 *  - Add parameter to not optimized already optimized files! (check if last byte is EOI or not ;))
 	 *  - Check how to create an EXE from JAR
 	 *  - Grab rotation in JPEG EXIFs
 	 *  - Auto rotate image in Viewer
@@ -19,7 +19,11 @@ public class Main {
 	 */
 	
 	//-Xmx1024m
+	//Without argument the gui is opened, else the files are optimized without window (see CommandLine)
 	public static void main(String[] args) {
+		if (args.length > 0) {
+			System.exit(CommandLine.run(args));
+		}
 		new Gui();
 	}
 }
@@ -0,0 +1,259 @@
+package cli;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import core.JPEGFiles;
+import core.JPEGFilesBatch;
+import core.JPEGFilesBatchListener;
+import core.OptimizationManifest;
+import core.QualitySearch;
+
+//Headless batch, for servers and scheduled jobs: optimize every jpeg file of a directory, without any window.
+//One JSON object per line is written on stdout for every file, then a summary; the logs of the optimization go to stderr.
+//Nothing of AWT is used but the image classes, so the JVM runs headless.
+public class CommandLine implements JPEGFilesBatchListener {
+	
+	public static final int EXIT_OK = 0;
+	public static final int EXIT_FILES_FAILED = 1; //at least one file could not be processed (read or write error...)
+	public static final int EXIT_USAGE = 2;
+	public static final int EXIT_ERROR = 3; //the batch could not run
+	
+	private static final String USAGE =
+		"Usage: java -jar JPegOptimizer.jar --src <dir> --dst <dir> [options]\n" +
+		"  --src <dir>          directory of the jpeg files to optimize\n" +
+		"  --dst <dir>          directory of the optimized files (created if needed, may be the source directory)\n" +
+		"  --max-diff <rate>    max visual difference allowed, in % (default 0.75)\n" +
+		"  --min-size <MB>      files smaller than this are copied as is (default 5)\n" +
+		"  --overwrite          overwrite the existing destination files (default: keep them)\n" +
+		"  --threads <n>        number of files optimized at the same time (default: number of cores)\n" +
+		"  --search <name>      quality search strategy: interpolation (default) or bisection\n" +
+		"  --proxy-search       search the quality on a downscaled copy of the big pictures, then only confirm it at full resolution\n" +
+		"  --sampled-diff       estimate the diff from a sample of the pixels: faster, but a file slightly above the max diff may (rarely) pass\n" +
+		"  --curve-sidecars     keep the quality curve of each file next to the destination file, to search faster the next runs\n" +
+		"Exit codes: 0 done, 1 some files failed, 2 bad arguments, 3 the batch could not run.";
+	
+	private PrintStream _out; //JSON lines only
+	private Map<JPEGFiles, String> _errors; //of the files which failed
+	
+	private CommandLine(PrintStream out) {
+		_out = out;
+		_errors = Collections.synchronizedMap(new HashMap<JPEGFiles, String>());
+	}
+	
+	//Returns the exit code
+	public static int run(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		PrintStream out = System.out;
+		System.setOut(System.err); //the optimization logs on System.out: stdout is kept for the results
+		try {
+			return new CommandLine(out).execute(args);
+		} finally {
+			out.flush();
+		}
+	}
+	
+	private int execute(String[] args) {
+		File srcDir = null;
+		File dstDir = null;
+		double maxVisualDiff = 0.75;
+		double minSizeMB = 5;
+		boolean overwriteDst = false;
+		int nbThreads = JPEGFilesBatch.getDefaultNbThreads();
+		QualitySearch qualitySearch = QualitySearch.INTERPOLATION;
+		boolean proxySearch = false;
+		boolean sampledDiff = false;
+		boolean curveSidecars = false;
+		try {
+			for (int i = 0; i < args.length; ++i) {
+				String arg = args[i];
+				if (arg.equals("--src")) {
+					srcDir = new File(value(args, ++i, arg));
+				} else if (arg.equals("--dst")) {
+					dstDir = new File(value(args, ++i, arg));
+				} else if (arg.equals("--max-diff")) {
+					maxVisualDiff = Double.parseDouble(value(args, ++i, arg));
+				} else if (arg.equals("--min-size")) {
+					minSizeMB = Double.parseDouble(value(args, ++i, arg));
+				} else if (arg.equals("--overwrite")) {
+					overwriteDst = true;
+				} else if (arg.equals("--threads")) {
+					nbThreads = Integer.parseInt(value(args, ++i, arg));
+				} else if (arg.equals("--search")) {
+					qualitySearch = QualitySearch.get(value(args, ++i, arg));
+					if (qualitySearch == null) {
+						throw new IllegalArgumentException("Unknown search " + args[i]);
+					}
+				} else if (arg.equals("--proxy-search")) {
+					proxySearch = true;
+				} else if (arg.equals("--sampled-diff")) {
+					sampledDiff = true;
+				} else if (arg.equals("--curve-sidecars")) {
+					curveSidecars = true;
+				} else if (arg.equals("--help") || arg.equals("-h")) {
+					System.err.println(USAGE);
+					return EXIT_OK;
+				} else {
+					throw new IllegalArgumentException("Unknown argument " + arg);
+				}
+			}
+			if ((srcDir == null) || (dstDir == null)) {
+				throw new IllegalArgumentException("--src and --dst are required");
+			}
+			if (srcDir.isDirectory() == false) {
+				throw new IllegalArgumentException(srcDir.getAbsolutePath() + " is not a directory");
+			}
+			if ((maxVisualDiff < 0) || (maxVisualDiff > 100) || (minSizeMB < 0) || (nbThreads < 1)) {
+				throw new IllegalArgumentException("Out of range value");
+			}
+		} catch (IllegalArgumentException e) { //NumberFormatException too
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			return EXIT_USAGE;
+		}
+		
+		if ((dstDir.isDirectory() == false) && (dstDir.mkdirs() == false)) {
+			System.err.println("Unable to create " + dstDir.getAbsolutePath());
+			return EXIT_ERROR;
+		}
+		
+		List<JPEGFiles> files = listFiles(srcDir, dstDir);
+		long minSize = (long) (minSizeMB * 1024 * 1024); //convert from Mb to b
+		JPEGFilesBatch batch = new JPEGFilesBatch(files, dstDir, maxVisualDiff, minSize, overwriteDst);
+		batch.setNbThreads(nbThreads);
+		batch.setQualitySearch(qualitySearch);
+		batch.setProxySearch(proxySearch);
+		batch.setSampledDiff(sampledDiff);
+		batch.setCurveSidecars(curveSidecars);
+		batch.setListener(this);
+		batch.setPipelined(true);
+		batch.setParallelProbes(files.size() < batch.getNbThreads());
+		OptimizationManifest manifest = new OptimizationManifest(srcDir, dstDir);
+		try {
+			manifest.load();
+			batch.setManifest(manifest);
+		} catch (IOException e) {
+			System.err.println("Unable to read " + manifest.getFile().getAbsolutePath() + " (" + e.getMessage() + "), every file will be optimized.");
+		}
+		
+		try {
+			batch.run();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return EXIT_ERROR;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return EXIT_ERROR;
+		}
+		
+		_out.println("{\"files\":" + files.size() + ",\"failed\":" + _errors.size() + ",\"earnSize\":" + batch.getEarnSize() + "}");
+		return _errors.isEmpty() ? EXIT_OK : EXIT_FILES_FAILED;
+	}
+	
+	private static String value(String[] args, int i, String arg) {
+		if (i >= args.length) {
+			throw new IllegalArgumentException("Missing value of " + arg);
+		}
+		return args[i];
+	}
+	
+	//Same files as the gui (see JPEGFilesList.listSrcFiles), by name
+	private static List<JPEGFiles> listFiles(File srcDir, File dstDir) {
+		File files[] = srcDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				String lowercaseName = file.getName().toLowerCase();
+				return file.isFile() && (lowercaseName.endsWith(".jpg") || lowercaseName.endsWith(".jpeg"));
+			}
+		});
+		List<JPEGFiles> jpegFiles = new ArrayList<JPEGFiles>();
+		if (files != null) {
+			Arrays.sort(files);
+			for (File file : files) {
+				JPEGFiles jpegFile = new JPEGFiles(file);
+				jpegFile.setDst(new File(dstDir, file.getName()));
+				jpegFiles.add(jpegFile);
+			}
+		}
+		return jpegFiles;
+	}
+	
+	//-- JPEGFilesBatchListener -----------------------------------------------
+	
+	@Override
+	public void fileStarted(JPEGFiles jpegFile) {
+	}
+	
+	@Override
+	public void fileFailed(JPEGFiles jpegFile, Exception e) {
+		_errors.put(jpegFile, (e.getMessage() != null) ? e.getMessage() : e.getClass().getName());
+	}
+	
+	@Override
+	public void fileDone(JPEGFiles jpegFile, int nbFilesDone, int nbFiles) {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"src\":").append(quote(jpegFile.getSrc().getAbsolutePath()));
+		json.append(",\"dst\":").append(quote(jpegFile.getDst().getAbsolutePath()));
+		String error = _errors.get(jpegFile);
+		if (error != null) {
+			json.append(",\"state\":\"failed\",\"error\":").append(quote(error));
+		} else {
+			int state = jpegFile.getState();
+			json.append(",\"state\":\"").append(getStateName(state)).append("\"");
+			if (state == JPEGFiles.OPTIMIZED_OK) {
+				json.append(",\"quality\":").append(jpegFile.getJpegQualityFound());
+			}
+			json.append(",\"srcSize\":").append(jpegFile.getOriginalSrcSize());
+			if (jpegFile.getDst().exists()) {
+				json.append(",\"dstSize\":").append(jpegFile.getDst().length());
+			}
+			json.append(",\"time\":").append(jpegFile.getProcessingTime()); //without the waits of the pipeline
+		}
+		json.append(",\"done\":").append(nbFilesDone).append(",\"total\":").append(nbFiles).append("}");
+		_out.println(json.toString());
+	}
+	
+	private static String getStateName(int state) {
+		if (state == JPEGFiles.OPTIMIZED_OK) {
+			return "optimized";
+		} else if (state == JPEGFiles.OPTIMIZED_KO) {
+			return "not_optimized";
+		} else if (state == JPEGFiles.OPTIMIZED_UNNECESSARY) {
+			return "unnecessary";
+		} else if (state == JPEGFiles.OPTIMIZED_OVERWRITE_NOT_ALLOWED) {
+			return "overwrite_not_allowed";
+		} else if (state == JPEGFiles.ALREADY_OPTIMIZED) {
+			return "already_optimized";
+		}
+		return "unknown";
+	}
+	
+	private static String quote(String txt) {
+		StringBuilder json = new StringBuilder("\"");
+		for (int i = 0; i < txt.length(); ++i) {
+			char c = txt.charAt(i);
+			if ((c == '"') || (c == '\\')) {
+				json.append('\\').append(c);
+			} else if (c == '\n') {
+				json.append("\\n");
+			} else if (c == '\r') {
+				json.append("\\r");
+			} else if (c == '\t') {
+				json.append("\\t");
+			} else if (c < 0x20) {
+				json.append(String.format("\\u%04x", (int)c));
+			} else {
+				json.append(c);
+			}
+		}
+		return json.append('"').toString();
+	}
+}
@@ -0,0 +1,65 @@
+package core;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.IIOImage;
+import javax.imageio.metadata.IIOMetadata;
+
+import utils.ImageUtils;
+import utils.ReusableByteArrayOutputStream;
+
+//Source jpeg decoded once (pixels + metadata) and shared by every candidate encode of a file, until release() is called
+public class DecodedSource {
+
+	private File _file;
+	private IIOImage _image;
+	
+	public DecodedSource(File file) throws IOException {
+		_file = file;
+		_image = ImageUtils.readJPEGWithMetadata(file);
+	}
+	
+	//file already read in memory (see JPEGFiles.readSource)
+	public DecodedSource(File file, ReusableByteArrayOutputStream data) throws IOException {
+		_file = file;
+		_image = ImageUtils.readJPEGWithMetadata(data);
+	}
+	
+	private DecodedSource(File file, IIOImage image) {
+		_file = file;
+		_image = image;
+	}
+	
+	//Copy of the source downscaled by factor (see ImageUtils.downscale), without metadata, to search on fewer pixels
+	public DecodedSource downscale(int factor) {
+		return new DecodedSource(_file, new IIOImage(ImageUtils.downscale(getBufferedImage(), factor), null, null));
+	}
+	
+	public File getFile() {
+		return _file;
+	}
+	
+	public IIOImage getImage() {
+		return _image;
+	}
+	
+	public BufferedImage getBufferedImage() {
+		return (BufferedImage) _image.getRenderedImage();
+	}
+	
+	public IIOMetadata getMetadata() {
+		return _image.getMetadata();
+	}
+	
+	public boolean isReleased() {
+		return _image == null;
+	}
+	
+	//Free the decoded raster, the session can not be used anymore after that
+	public void release() {
+		_image = null;
+	}
+	
+}
@@ -0,0 +1,154 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import utils.JPEGHeader;
+
+//Order in which the files of a batch are started: the most expensive first (longest processing time first), so a big file does not start last and keep one worker busy long after the other ones are idle.
+//The cost of a file is predicted from its pixels (every probe encodes, decodes and compares the whole image) and its size (read and decode of the source),
+//with coefficients fitted (least squares) on the files already done: the order of the files not started yet follows the measured times.
+//Shared by every thread of a batch.
+public class FileScheduler {
+	
+	private static final double DEFAULT_MS_PER_PIXEL = 500 / 1e6; //a few probes, on one core (only the ratio of the two coefficients matters until a file is done)
+	private static final double DEFAULT_MS_PER_BYTE = 50 / 1e6;
+	private static final double REORDER_RATE = 0.1; //the pending files are sorted again when the byte/pixel cost ratio moved more than this since the last sort
+	
+	private List<Job> _pending; //by increasing cost (the next file is the last one), files to start last first
+	private Map<JPEGFiles, Job> _jobs;
+	private double _msPerPixel;
+	private double _msPerByte;
+	private double _sortedRatio;
+	private boolean _sorted;
+	
+	//Sums of the least squares fit of time = msPerPixel * pixels + msPerByte * bytes
+	private int _nbSamples;
+	private double _sumPixelsPixels;
+	private double _sumPixelsBytes;
+	private double _sumBytesBytes;
+	private double _sumPixelsTime;
+	private double _sumBytesTime;
+	
+	public FileScheduler() {
+		_pending = new ArrayList<Job>();
+		_jobs = new HashMap<JPEGFiles, Job>();
+		_msPerPixel = DEFAULT_MS_PER_PIXEL;
+		_msPerByte = DEFAULT_MS_PER_BYTE;
+		_sorted = false;
+		_nbSamples = 0;
+	}
+	
+	//header: of the source file, null if it can not be read. last: started after every other file, whatever its cost (see MemoryBudget.isOversized)
+	public synchronized void add(JPEGFiles jpegFile, JPEGHeader header, boolean last) {
+		Job job = new Job(jpegFile, header, last);
+		_jobs.put(jpegFile, job);
+		_pending.add(job);
+		_sorted = false;
+	}
+	
+	//Returns null when every file is started
+	public synchronized JPEGFiles next() {
+		if (_pending.isEmpty()) {
+			return null;
+		}
+		double ratio = _msPerByte / _msPerPixel;
+		if ((_sorted == false) || (Math.abs(ratio - _sortedRatio) > REORDER_RATE * Math.max(ratio, _sortedRatio))) {
+			sort();
+		}
+		return _pending.remove(_pending.size() - 1)._jpegFile;
+	}
+	
+	//Number of files not started yet
+	public synchronized int size() {
+		return _pending.size();
+	}
+	
+	public synchronized boolean isEmpty() {
+		return _pending.isEmpty();
+	}
+	
+	//Predicted time of the file in ms, with the current coefficients
+	public synchronized double getCost(JPEGFiles jpegFile) {
+		Job job = _jobs.get(jpegFile);
+		return (job != null) ? getCost(job) : 0;
+	}
+	
+	//Measured time of a file that was really searched (a file skipped, copied or found in the quality cache says nothing of its cost)
+	public synchronized void done(JPEGFiles jpegFile, long time) {
+		Job job = _jobs.get(jpegFile);
+		if (job == null) {
+			return ;
+		}
+		_nbSamples++;
+		_sumPixelsPixels += job._nbPixels * job._nbPixels;
+		_sumPixelsBytes += job._nbPixels * job._nbBytes;
+		_sumBytesBytes += job._nbBytes * job._nbBytes;
+		_sumPixelsTime += job._nbPixels * time;
+		_sumBytesTime += job._nbBytes * time;
+		fit();
+	}
+	
+	private void fit() {
+		//Both coefficients, once the files are different enough (same sized photos only give their ratio)
+		double det = _sumPixelsPixels * _sumBytesBytes - _sumPixelsBytes * _sumPixelsBytes;
+		if ((_nbSamples >= 2) && (det > 1e-6 * _sumPixelsPixels * _sumBytesBytes)) {
+			double msPerPixel = (_sumPixelsTime * _sumBytesBytes - _sumBytesTime * _sumPixelsBytes) / det;
+			double msPerByte = (_sumPixelsPixels * _sumBytesTime - _sumPixelsBytes * _sumPixelsTime) / det;
+			if ((msPerPixel > 0) && (msPerByte >= 0)) {
+				_msPerPixel = msPerPixel;
+				_msPerByte = msPerByte;
+				return ;
+			}
+		}
+		
+		//Else the default coefficients, scaled to the measured times
+		double sumDefaultTime = DEFAULT_MS_PER_PIXEL * _sumPixelsTime + DEFAULT_MS_PER_BYTE * _sumBytesTime;
+		double sumDefaultDefault = DEFAULT_MS_PER_PIXEL * DEFAULT_MS_PER_PIXEL * _sumPixelsPixels + 2 * DEFAULT_MS_PER_PIXEL * DEFAULT_MS_PER_BYTE * _sumPixelsBytes + DEFAULT_MS_PER_BYTE * DEFAULT_MS_PER_BYTE * _sumBytesBytes;
+		if ((sumDefaultTime > 0) && (sumDefaultDefault > 0)) {
+			double scale = sumDefaultTime / sumDefaultDefault;
+			_msPerPixel = DEFAULT_MS_PER_PIXEL * scale;
+			_msPerByte = DEFAULT_MS_PER_BYTE * scale;
+		}
+	}
+	
+	private double getCost(Job job) {
+		return _msPerPixel * job._nbPixels + _msPerByte * job._nbBytes;
+	}
+	
+	private void sort() {
+		Collections.sort(_pending, new Comparator<Job>() {
+			@Override
+			public int compare(Job job1, Job job2) {
+				if (job1._last != job2._last) {
+					return job1._last ? -1 : 1;
+				}
+				return Double.compare(getCost(job1), getCost(job2));
+			}
+		});
+		_sortedRatio = _msPerByte / _msPerPixel;
+		_sorted = true;
+	}
+	
+	private static class Job {
+		
+		private JPEGFiles _jpegFile;
+		private boolean _last;
+		private double _nbPixels;
+		private double _nbBytes;
+		
+		private Job(JPEGFiles jpegFile, JPEGHeader header, boolean last) {
+			_jpegFile = jpegFile;
+			_last = last;
+			_nbBytes = jpegFile.getSrc().length();
+			_nbPixels = 0; //not a readable jpeg: fails as soon as it is decoded, cost of the read only
+			if ((header != null) && header.hasFrame()) {
+				_nbPixels = header.getWidth() * (double)header.getHeight();
+			}
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package core;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+//Workers of a batch with no file left to start. At the end of a batch, the files still running borrow them for speculative probes (see JPEGFiles.searchQuality),
+//so the last big files do not keep one core each busy while the other ones wait.
+//A borrowed worker runs the task on a helper thread: the number of busy threads of the batch stays the number of workers (and the number of cores, with more workers than cores).
+//Shared by every thread of a batch.
+public class IdleWorkers {
+	
+	private MemoryBudget _memoryBudget;
+	private ExecutorService _executor;
+	private ForkJoinPool _diffPool;
+	private int _nbWorkers;
+	private int _maxBusyThreads;
+	private int _nbIdle;
+	private int _nbBorrowed;
+	
+	//memoryBudget: also covers the memory of the borrowed tasks (null if none)
+	public IdleWorkers(int nbWorkers, MemoryBudget memoryBudget) {
+		_memoryBudget = memoryBudget;
+		_executor = null;
+		_diffPool = null;
+		_nbWorkers = nbWorkers;
+		_maxBusyThreads = Math.min(nbWorkers, Runtime.getRuntime().availableProcessors());
+		_nbIdle = 0;
+		_nbBorrowed = 0;
+	}
+	
+	//A worker found no file to start, until the end of the batch
+	public synchronized void add() {
+		_nbIdle++;
+	}
+	
+	//Number of tasks trySubmit would accept now (if the memory is available)
+	public synchronized int getNbAvailable() {
+		return Math.max(0, Math.min(_nbIdle - _nbBorrowed, _maxBusyThreads - (_nbWorkers - _nbIdle) - _nbBorrowed));
+	}
+	
+	//Runs task on an idle worker, using memory bytes. Returns null without waiting if no worker is idle (or if the memory is not available): the caller does the work itself.
+	public <T> Future<T> trySubmit(final Callable<T> task, final long memory) {
+		synchronized (this) {
+			if ((_nbBorrowed >= _nbIdle) || ((_nbWorkers - _nbIdle) + _nbBorrowed >= _maxBusyThreads)) {
+				return null;
+			}
+			if ((_memoryBudget != null) && (_memoryBudget.tryAcquire(memory) == false)) {
+				return null;
+			}
+			_nbBorrowed++;
+			if (_executor == null) {
+				_executor = Executors.newCachedThreadPool();
+			}
+		}
+		try {
+			return _executor.submit(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					try {
+						return task.call();
+					} finally {
+						release(memory);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) { //batch done
+			release(memory);
+			return null;
+		}
+	}
+	
+	//Pool to compute the diff of a candidate on several cores (see ImageUtils.computeSimilarityRGB_Parallel), only while some workers are idle (null otherwise):
+	//sized like the busy threads of the batch, so it never uses more cores than the batch was given.
+	public synchronized ForkJoinPool getDiffPool() {
+		if (getNbAvailable() == 0) {
+			return null;
+		}
+		if (_diffPool == null) {
+			_diffPool = new ForkJoinPool(_maxBusyThreads);
+		}
+		return _diffPool;
+	}
+	
+	private void release(long memory) {
+		synchronized (this) {
+			_nbBorrowed--;
+		}
+		if (_memoryBudget != null) {
+			_memoryBudget.release(memory);
+		}
+	}
+	
+	public synchronized void shutdown() {
+		if (_executor != null) {
+			_executor.shutdown();
+		}
+		if (_diffPool != null) {
+			_diffPool.shutdown();
+		}
+	}
+}
@@ -3,11 +3,18 @@ package core;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
-import javax.imageio.ImageIO;
-
+import utils.DiffResult;
 import utils.FileUtils;
 import utils.ImageUtils;
+import utils.JPEGHeader;
+import utils.ReusableByteArrayOutputStream;
 import utils.ReadableUtils;
 
 
@@ -19,28 +26,61 @@ public class JPEGFiles {
 	public static int OPTIMIZED_KO = 3;
 	public static int OPTIMIZED_UNNECESSARY = 4;
 	public static int OPTIMIZED_OVERWRITE_NOT_ALLOWED = 5;
+	public static int ALREADY_OPTIMIZED = 6;
+	public static int ANALYZED = 7;
 	
 	private JPEGFilesListener _listener;
 	private Loger _loger;
+	private QualityCache _qualityCache;
+	private QualityCurve _curve;
+	private boolean _curveSidecar;
+	private QualitySearch _qualitySearch = QualitySearch.INTERPOLATION;
+	private QualityPredictor _qualityPredictor;
+	private String[] _predictorKeys; //see QualityPredictor.getKeys
+	private JPEGHeader _header; //see getHeader
+	private boolean _headerRead;
+	private boolean _proxySearch;
+	private boolean _sampledDiff;
+	private IdleWorkers _idleWorkers;
+	private boolean _parallelProbes;
+	private ReusableByteArrayOutputStream _srcData; //source file read in memory by readSource (null if not read yet)
+	private boolean _deferWrites; //writes kept in memory until write() is called (see readSource)
+	private ReusableByteArrayOutputStream _pendingDst; //bytes to write in the destination file
+	private boolean _pendingCopy; //source to copy in the destination file
+	private int _pendingState;
+	private boolean _pendingCurve; //curve to save in its sidecar file
+	private QualityCache.Result _pendingCacheResult; //result to store in the quality cache
+	private double _pendingMaxVisualDiff;
+	private String _srcHash; //see QualityCache.hash, null without cache (see prefetch)
+	private QualityCache.Result _cachedResult; //found in the quality cache for the source, null if none
+	private long _dstSize;
+	private boolean _earlyAbort = true; //disabled by analyze, which needs exact diffs to reuse them for every max visual diff
 	
 	private File _src;
 	private File _dst;
 	
 	private long _originalSrcSize;
 	
-	private long _start;
-	private long _end;
+	//volatile: the file is optimized by a batch worker while the gui reads its state
+	private volatile long _start;
+	private volatile long _end;
+	private volatile long _processingTime; //see getProcessingTime
 	
-	private int _state = NOT_YET_OPTIMIZED;
+	private volatile int _state = NOT_YET_OPTIMIZED;
 	
-	private int _jpegQualityFound = 100;
+	private volatile int _jpegQualityFound = 100;
 	
-	private int _maxOptimSteps = 2*7; //max steps in dichotomic search between 0-100 = Math.ceil(Math.log2(101)); multiply per 2 because we do 2 sub step (create jpeg + compute diff)
-	private int _currentOptimStep = 0;
+	private volatile int _maxOptimSteps = 2*7; //max steps in dichotomic search between 0-100 = Math.ceil(Math.log2(101)); multiply per 2 because we do 2 sub step (create jpeg + compute diff)
+	private volatile int _currentOptimStep = 0;
+	private static final ThreadLocal<BufferedImage> _candidateImage = new ThreadLocal<BufferedImage>(); //decoded candidate, reused by the next probes of the same thread
+	private static final int PROXY_PIXELS = 4 * 1000 * 1000; //size of the downscaled copy used by the proxy search
 	
 	public JPEGFiles(File src) {
 		_loger = null;
 		_listener = null;
+		_qualityCache = null;
+		_curve = null;
+		_curveSidecar = false;
 		_src = src;
 		_originalSrcSize = _src.length();
 	}
@@ -53,6 +93,51 @@ public class JPEGFiles {
 		_listener = listener;
 	}
 	
+	//Results already known for the same source content are taken from the cache, new results are stored in it
+	public void setQualityCache(QualityCache qualityCache) {
+		_qualityCache = qualityCache;
+	}
+	
+	public void setQualitySearch(QualitySearch qualitySearch) {
+		_qualitySearch = qualitySearch;
+	}
+	
+	//The predictor gives the quality to start the search with, and learns the quality found
+	public void setQualityPredictor(QualityPredictor qualityPredictor) {
+		_qualityPredictor = qualityPredictor;
+	}
+	
+	//Search the quality on a downscaled copy of the source when it is bigger than PROXY_PIXELS, then only confirm it at full resolution
+	public void setProxySearch(boolean proxySearch) {
+		_proxySearch = proxySearch;
+	}
+	
+	//Estimate the diff of the candidates from a sample of the pixels, and compute it on the whole image only when the estimate is too close to the max visual diff.
+	//Faster, but the decision is only statistical: a candidate slightly above the max visual diff may (rarely) pass.
+	public void setSampledDiff(boolean sampledDiff) {
+		_sampledDiff = sampledDiff;
+	}
+	
+	//While workers of the batch are idle, the quality just below each probe is tried at the same time on one of them (see searchQuality)
+	public void setIdleWorkers(IdleWorkers idleWorkers) {
+		_idleWorkers = idleWorkers;
+	}
+	
+	//While workers of the batch are idle, each round of the search tries several qualities at the same time, splitting the range evenly (k-ary search instead of one probe at a time):
+	//more encodes in total, but fewer rounds, for the files which have to be done as soon as possible (a single file, the last files of a batch)
+	public void setParallelProbes(boolean parallelProbes) {
+		_parallelProbes = parallelProbes;
+	}
+	
+	//Keep the quality curve measured by the search in a sidecar file next to the destination file (it is always kept in memory)
+	public void setCurveSidecar(boolean curveSidecar) {
+		_curveSidecar = curveSidecar;
+	}
+	
+	public QualityCurve getQualityCurve() {
+		return _curve;
+	}
+	
 	public void setDst(File file) {
 		_dst = file;
 	}
@@ -84,10 +169,29 @@ public class JPEGFiles {
 		}
 		return earn;
 	}
-
+	
 	public void reinitState() {
 		setState(NOT_YET_OPTIMIZED);
 		_originalSrcSize = _src.length();
+		synchronized (this) { //the source may have changed
+			_header = null;
+			_headerRead = false;
+			_predictorKeys = null;
+		}
+	}
+	
+	//Header of the source file, read only once (null if it can not be read): the memory estimate, the scheduler, the predictor and the search share it
+	public synchronized JPEGHeader getHeader() {
+		if (_headerRead == false) {
+			try {
+				_header = JPEGHeader.read(_src);
+			} catch (IOException e) {
+				log(" - Unable to read the source jpeg header: " + e.getMessage());
+				_header = null;
+			}
+			_headerRead = true;
+		}
+		return _header;
 	}
 	
 	public int getState() {
@@ -107,6 +211,11 @@ public class JPEGFiles {
 		return _end - _start;
 	}
 	
+	//Same as getElaspedTime, but without the time spent waiting between the steps of the pipeline (see readSource)
+	public long getProcessingTime() {
+		return _processingTime;
+	}
+	
 	public int getMaxOptimStep() {
 		return _maxOptimSteps;
 	}
@@ -128,109 +237,641 @@ public class JPEGFiles {
 		if (_state == OPTIMIZING) {
 			_currentOptimStep = 0;
 		}
-		_listener.stateChange(this);
+		if (_listener != null) {
+			_listener.stateChange(this);
+		}
 	}
 	
 	private void incCurrentOptimStep() {
-		_currentOptimStep++;
-		_listener.stateChange(this);
+		synchronized (this) { //also counted by the probes running on idle workers
+			_currentOptimStep++;
+		}
+		if (_listener != null) {
+			_listener.stateChange(this);
+		}
 	}
 	
-
-	private boolean optimize(BufferedImage img1, File tmp, int quality, double maxVisualDiff) throws IOException {
-		log("   Trying quality " + quality + "%");
-		
-		if (tmp.exists()) {
-			tmp.delete();
-		}
+	
+	//Encode source at quality, and add the measured point to curve.
+	//Several probes of the file may run at the same time (see probe): every line of the log gives the quality, so their lines can be told apart.
+	private boolean optimize(DecodedSource source, QualityCurve curve, ReusableByteArrayOutputStream candidate, int quality, double maxVisualDiff) throws IOException {
+		return optimize(source, curve, candidate, quality, maxVisualDiff, false);
+	}
+	
+	//speculative: probe run on an idle worker (see speculate), said in the log as its lines interleave with the ones of the current thread
+	private boolean optimize(DecodedSource source, QualityCurve curve, ReusableByteArrayOutputStream candidate, int quality, double maxVisualDiff, boolean speculative) throws IOException {
+		log("   Trying quality " + quality + "%" + (speculative ? " on an idle worker" : ""));
 		
 		long start1 = System.currentTimeMillis();
-		ImageUtils.createJPEG(_src, tmp, quality);
+		ImageUtils.createJPEG(source.getImage(), candidate, quality);
 		long end1 = System.currentTimeMillis();
-		log("   * Size : " + ReadableUtils.fileSize(tmp.length()) + "\t (" + ReadableUtils.interval(end1-start1) + ")");
+		log("   * " + quality + "% Size : " + ReadableUtils.fileSize(candidate.size()) + "\t (" + ReadableUtils.interval(end1-start1) + ")");
 		incCurrentOptimStep();
 		
 		long start2 = System.currentTimeMillis();
-		BufferedImage img2 = ImageIO.read(tmp);
-		double diff = ImageUtils.computeSimilarityRGB(img1, img2);
+		BufferedImage img2 = ImageUtils.readJPEG(candidate, _candidateImage.get()); //decoded in the image of the previous candidate of the thread, if it has the same size
+		_candidateImage.set(img2);
+		DiffResult diff;
+		ForkJoinPool diffPool = getDiffPool(img2);
+		if (_earlyAbort == false) {
+			double exactDiff = (diffPool != null) ? ImageUtils.computeSimilarityRGB_Parallel(source.getBufferedImage(), img2, diffPool) : ImageUtils.computeSimilarityRGB(source.getBufferedImage(), img2);
+			diff = new DiffResult(exactDiff, false, 1.);
+		} else if (_sampledDiff) {
+			diff = ImageUtils.computeSimilarityRGB_Sampled(source.getBufferedImage(), img2, maxVisualDiff / 100., diffPool);
+		} else {
+			diff = ImageUtils.computeSimilarityRGB(source.getBufferedImage(), img2, maxVisualDiff / 100., diffPool);
+		}
 		long end2 = System.currentTimeMillis();
 		incCurrentOptimStep();
 		
-		img2 = null;
-		log("   * Diff : " + ReadableUtils.rate(diff) + "\t (" + ReadableUtils.interval(end2-start2) + ")");
-		diff *= 100.;			
-		if (diff < maxVisualDiff) {
-			log("   [OK] Visual diff is correct.");
-			_jpegQualityFound = quality;
+		curve.add(new QualityCurve.Point(quality, candidate.size(), diff.getLowerBound(), diff.getUpperBound(), end2 - start1));
+		if (diff.isSampled()) {
+			log("   * " + quality + "% Diff : " + ReadableUtils.rate(diff.getDiff()) + " (between " + ReadableUtils.rate(diff.getLowerBound()) + " and " + ReadableUtils.rate(diff.getUpperBound()) + ")\t (" + ReadableUtils.interval(end2-start2) + ") estimated from " + ReadableUtils.rate(diff.getScannedFraction()) + " of the image");
+		} else if (diff.isRejectedEarly()) {
+			log("   * " + quality + "% Diff : > " + ReadableUtils.rate(diff.getDiff()) + "\t (" + ReadableUtils.interval(end2-start2) + ") rejected early, after scanning " + ReadableUtils.rate(diff.getScannedFraction()) + " of the image");
+		} else {
+			log("   * " + quality + "% Diff : " + ReadableUtils.rate(diff.getDiff()) + "\t (" + ReadableUtils.interval(end2-start2) + ")");
+		}
+		if (diff.isLowerThan(maxVisualDiff / 100.)) {
+			log("   [OK] " + quality + "% Visual diff is correct.");
 			return true;
 		} else {
-			log("   [KO] Visual diff is too important, try a better quality.");
+			log("   [KO] " + quality + "% Visual diff is too important, try a better quality.");
 			return false;
 		}
 	}
 	
-	private boolean optimize(File dstDir, double maxVisualDiff) throws IOException {
-		File tmp = new File(dstDir, "JpegOptimizer.tmp.jpg");
-		BufferedImage img1 = ImageIO.read(_src); 
+	//Returns the new state of the file: OPTIMIZED_OK, OPTIMIZED_KO or OPTIMIZED_UNNECESSARY
+	private int optimize(File dstDir, double maxVisualDiff) throws IOException {
+		if (_srcData == null) { //else already done by readSource
+			prefetch(maxVisualDiff);
+		}
+		if (_cachedResult != null) {
+			int state = optimize(_cachedResult, maxVisualDiff);
+			if (state >= 0) {
+				return state;
+			}
+		}
 		
+		int state = search(maxVisualDiff);
+		saveCurve();
+		if (_srcHash != null) {
+			storeInCache(maxVisualDiff, new QualityCache.Result(state, state == OPTIMIZED_OK ? _jpegQualityFound : -1, state == OPTIMIZED_OK ? _dstSize : -1));
+		}
+		return state;
+	}
+	
+	//Read everything the search needs from the disk, but the source pixels: the quality curve, the result in the quality cache, the header and exif of the source
+	private void prefetch(double maxVisualDiff) throws IOException {
+		loadCurve();
+		getHeader();
+		if ((_qualityPredictor != null) && (_predictorKeys == null)) {
+			_predictorKeys = QualityPredictor.getKeys(_src, getHeader());
+		}
+		_srcHash = null;
+		_cachedResult = null;
+		if (_qualityCache != null) {
+			_srcHash = (_srcData != null) ? _qualityCache.hash(_srcData) : _qualityCache.hash(_src);
+			_cachedResult = _qualityCache.get(_srcHash, maxVisualDiff);
+		}
+	}
+	
+	private void saveCurve() {
+		if (_curveSidecar == false) {
+			return ;
+		}
+		if (_deferWrites) {
+			_pendingCurve = true;
+			return ;
+		}
+		try {
+			_curve.save(getCurveSidecar());
+		} catch (IOException e) {
+			warn("Unable to save the quality curve: " + e.getMessage());
+		}
+	}
+	
+	private void storeInCache(double maxVisualDiff, QualityCache.Result result) {
+		if (_deferWrites) {
+			_pendingCacheResult = result;
+			_pendingMaxVisualDiff = maxVisualDiff;
+			return ;
+		}
+		try {
+			_qualityCache.put(_srcHash, maxVisualDiff, result);
+		} catch (IOException e) {
+			warn("Unable to store the result in the quality cache: " + e.getMessage());
+		}
+	}
+	
+	//Same source content already optimized with the same max visual diff: no search, only one encode at the known quality
+	//The hash only samples the file (see QualityCache.hash): the known quality is checked once before being written, returns -1 if it is not visually correct anymore (the file has to be searched)
+	private int optimize(QualityCache.Result cached, double maxVisualDiff) throws IOException {
+		if (cached.getState() != OPTIMIZED_OK) {
+			log(" - Result found in quality cache: " + (cached.getState() == OPTIMIZED_KO ? "unable to optimize the file." : "file already compressed enough."));
+			return cached.getState();
+		}
+		
+		log(" - Quality " + cached.getQuality() + "% found in quality cache, check it.");
+		_maxOptimSteps = 2;
+		ReusableByteArrayOutputStream candidate = new ReusableByteArrayOutputStream();
+		DecodedSource source = decodeSource();
+		try {
+			if (optimize(source, _curve, candidate, cached.getQuality(), maxVisualDiff) == false) {
+				warn(" - Quality found in quality cache is not visually correct anymore (file changed), search it again.");
+				return -1;
+			}
+		} finally {
+			release(source);
+		}
+		_jpegQualityFound = cached.getQuality();
+		writeDst(candidate);
+		return OPTIMIZED_OK;
+	}
+	
+	private int search(double maxVisualDiff) throws IOException {
+		int maxQ = getMaxSearchQuality();
+		if (_curve.getFailingQuality(maxVisualDiff / 100.) >= maxQ) { //every quality up to maxQ is known to fail: nothing to decode
+			if (maxQ < 100) { //below a known source quality: same result as a search which found nothing
+				log(" - [OK] Every quality lower than the source one is known to fail, the file is already compressed enough.");
+				return OPTIMIZED_UNNECESSARY;
+			}
+			log(" - [KO] Every quality is known to fail, unable to optimize the file");
+			return OPTIMIZED_KO;
+		}
+		_maxOptimSteps = 2 * _qualitySearch.getMaxProbes(maxQ); //the probes tried at the same time add their steps when they start
+		
+		ReusableByteArrayOutputStream best = new ReusableByteArrayOutputStream(); //bytes of the best candidate found so far, written as is in the destination file
+		DecodedSource source = decodeSource(); //the source is decoded only once, for every candidate
+		try {
+			int predictedQuality = predictQuality(maxVisualDiff);
+			int proxyFactor = getProxyFactor(source);
+			if (proxyFactor > 1) {
+				_maxOptimSteps = 2 * (2 * _qualitySearch.getMaxProbes(maxQ) + 2); //the search on the proxy, the confirmation at full resolution, then the search at full resolution when the confirmation fails
+				predictedQuality = proxySearch(source, proxyFactor, best, maxQ, maxVisualDiff, predictedQuality);
+			}
+			int foundQuality = searchQuality(source, _curve, best, maxQ, maxVisualDiff, predictedQuality);
+			learnQuality(maxVisualDiff, foundQuality);
+			if ((foundQuality >= 0) && (foundQuality < 100)) {
+				log(" - [OK] Best quality found is " + foundQuality + "%");
+				_jpegQualityFound = foundQuality;
+				writeDst(best);
+				return OPTIMIZED_OK;
+			} else if (maxQ < 100) {
+				log(" - [OK] No quality lower than the source one is visually correct, the file is already compressed enough.");
+				return OPTIMIZED_UNNECESSARY;
+			} else {
+				log(" - [KO] Unable to optimize the file");
+				return OPTIMIZED_KO;
+			}
+		} finally {
+			release(source);
+		}
+	}
+	
+	//Highest quality worth trying: below the source quality, because re-encoding at the source quality (or above) can not make the file smaller
+	private int getMaxSearchQuality() {
+		int srcQuality = estimateSrcQuality();
+		if (srcQuality > 0) {
+			log(" - Source quality is estimated to " + srcQuality + "%, search only lower qualities.");
+			return srcQuality - 1;
+		}
+		return 100;
+	}
+	
+	//Search of the lowest quality between 0 and maxQ, returns -1 if none is visually correct.
+	//The next quality to try is given by _qualitySearch, or is the middle of the range when _qualitySearch is too slow to narrow it (so the search always ends in a few probes).
+	//The points of curve (measured on source) narrow the search, and every probe is added to it.
+	//The bytes of the lowest visually correct candidate are kept in best (if not null).
+	private int searchQuality(DecodedSource source, QualityCurve curve, ReusableByteArrayOutputStream best, int maxQ, double maxVisualDiff, int predictedQuality) throws IOException {
+		ReusableByteArrayOutputStream candidate = new ReusableByteArrayOutputStream(); //every candidate is encoded and decoded in memory, nothing is written on disk until the best quality is found
+		ReusableByteArrayOutputStream speculativeCandidate = null;
 		int minQ = 0;
-		int maxQ = 100;
 		int foundQuality = -1;
+		
+		//Qualities already measured by a previous search (even with another max visual diff) narrow the search
+		int passingQuality = curve.getPassingQuality(maxVisualDiff / 100.);
+		int failingQuality = curve.getFailingQuality(maxVisualDiff / 100.);
+		if ((passingQuality >= 0) && (passingQuality <= maxQ)) {
+			foundQuality = passingQuality;
+			maxQ = passingQuality - 1;
+		}
+		if (failingQuality >= minQ) {
+			minQ = failingQuality + 1;
+		}
+		if ((passingQuality >= 0) || (failingQuality >= 0)) {
+			log(" - Known from previous searches: " + (failingQuality >= 0 ? failingQuality + "% fails" : "") + ((passingQuality >= 0) && (failingQuality >= 0) ? ", " : "") + (passingQuality >= 0 ? passingQuality + "% passes" : ""));
+		}
+		
+		int slowSteps = 0; //consecutive probes that did not halve the range
+		List<ReusableByteArrayOutputStream> parallelCandidates = new ArrayList<ReusableByteArrayOutputStream>();
 		while (minQ <= maxQ) {
-			log(" - Dichotomic search between (" + minQ + ", " + maxQ + ") qualities :");
-			int quality = (int)Math.floor((minQ + maxQ) / 2.);
-			if (optimize(img1, tmp, quality, maxVisualDiff) == true) {
+			int nbProbes = getNbParallelProbes(maxQ - minQ + 1);
+			if (nbProbes > 1) {
+				log(" - Search between (" + minQ + ", " + maxQ + ") qualities (" + nbProbes + " at the same time) :");
+				int[] qualities = QualitySearch.split(minQ, maxQ, nbProbes);
+				while (parallelCandidates.size() < qualities.length) {
+					parallelCandidates.add(new ReusableByteArrayOutputStream());
+				}
+				boolean[] passed = probe(source, curve, parallelCandidates, qualities, maxVisualDiff);
+				
+				//The lowest passing quality, and the failing ones below it, narrow the range
+				int lowestPassing = -1;
+				for (int i = qualities.length - 1; i >= 0; --i) {
+					if (passed[i]) {
+						lowestPassing = i;
+					}
+				}
+				if (lowestPassing >= 0) {
+					foundQuality = qualities[lowestPassing];
+					if (best != null) {
+						best.swap(parallelCandidates.get(lowestPassing));
+					}
+					maxQ = foundQuality - 1;
+				}
+				for (int i = 0; i < qualities.length; ++i) {
+					if ((passed[i] == false) && ((lowestPassing < 0) || (i < lowestPassing))) {
+						minQ = Math.max(minQ, qualities[i] + 1);
+					}
+				}
+				continue;
+			}
+			
+			int quality = _qualitySearch.next(minQ, maxQ, maxVisualDiff / 100., curve, predictedQuality);
+			if ((quality < minQ) || (quality > maxQ) || (slowSteps >= QualitySearch.MAX_SLOW_STEPS)) {
+				log(" - Dichotomic search between (" + minQ + ", " + maxQ + ") qualities :");
+				quality = QualitySearch.bisect(minQ, maxQ);
+			} else {
+				log(" - Search between (" + minQ + ", " + maxQ + ") qualities (" + _qualitySearch.getName() + ") :");
+			}
+			int range = maxQ - minQ + 1;
+			//The guesses are rounded up, so the next probe is usually the quality just below: tried at the same time when a worker of the batch is idle
+			if (speculativeCandidate == null) {
+				speculativeCandidate = new ReusableByteArrayOutputStream();
+			}
+			Future<Boolean> speculative = (quality > minQ) ? speculate(source, curve, speculativeCandidate, quality - 1, maxVisualDiff) : null;
+			if (speculative != null) {
+				_maxOptimSteps += 2;
+			}
+			boolean passed;
+			try {
+				passed = optimize(source, curve, candidate, quality, maxVisualDiff);
+			} finally {
+				if (speculative != null) {
+					waitProbe(speculative); //also when the probe failed: speculativeCandidate is not released while it is written
+				}
+			}
+			if (passed) {
 				foundQuality = quality;
+				if (best != null) {
+					best.swap(candidate);
+				}
 				maxQ = quality-1;
+				if (speculative != null) {
+					if (getProbe(speculative)) {
+						foundQuality = quality - 1;
+						if (best != null) {
+							best.swap(speculativeCandidate);
+						}
+						maxQ = quality-2;
+					} else {
+						minQ = quality;
+					}
+				}
 			} else {
-				minQ = quality+1;
+				minQ = quality+1; //the quality just below fails too
 			}
+			slowSteps = (2 * (maxQ - minQ + 1) > range) ? slowSteps + 1 : 0;
 		}
-		img1 = null;
-		tmp.delete();
 		
+		if ((foundQuality >= 0) && (best != null) && (best.size() == 0)) { //best quality known from the curve, but not encoded during this search
+			log(" - Encoding quality " + foundQuality + "% known from previous searches.");
+			ImageUtils.createJPEG(source.getImage(), best, foundQuality);
+		}
+		return foundQuality;
+	}
+	
+	//Once the file is done, the thread does not keep its decoded candidate: the memory given back to the budget is really free
+	private static void release(DecodedSource source) {
+		source.release();
+		_candidateImage.remove();
+	}
+	
+	//Probe of quality on an idle worker of the batch, null if none is idle
+	private Future<Boolean> speculate(final DecodedSource source, final QualityCurve curve, final ReusableByteArrayOutputStream candidate, final int quality, final double maxVisualDiff) {
+		if (_idleWorkers == null) {
+			return null;
+		}
+		BufferedImage image = source.getBufferedImage();
+		long memory = image.getWidth() * (long)image.getHeight() * (image.getRaster().getNumBands() + 1); //decoded and encoded candidate
+		return _idleWorkers.trySubmit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws IOException {
+				try {
+					return optimize(source, curve, candidate, quality, maxVisualDiff, true);
+				} finally {
+					_candidateImage.remove(); //the helper thread does not keep the decoded candidate: its memory is given back to the budget
+				}
+			}
+		}, memory);
+	}
+	
+	//Number of qualities to try in the next round of the search: 1, unless parallel probes are enabled and workers of the batch are idle
+	private int getNbParallelProbes(int range) {
+		if ((_parallelProbes == false) || (_idleWorkers == null)) {
+			return 1;
+		}
+		return Math.min(range, 1 + _idleWorkers.getNbAvailable());
+	}
+	
+	//Pool to compute the diff of a big candidate on several cores, only while workers of the batch are idle (null to compute it on the current thread)
+	private ForkJoinPool getDiffPool(BufferedImage img) {
+		if ((_idleWorkers == null) || (img.getWidth() * (long)img.getHeight() < ImageUtils.PARALLEL_MIN_PIXELS)) {
+			return null;
+		}
+		return _idleWorkers.getDiffPool();
+	}
+	
+	//Tries every quality, on idle workers and on the current thread, and returns which ones are visually correct
+	private boolean[] probe(DecodedSource source, QualityCurve curve, List<ReusableByteArrayOutputStream> candidates, int[] qualities, double maxVisualDiff) throws IOException {
+		boolean[] passed = new boolean[qualities.length];
+		List<Future<Boolean>> probes = new ArrayList<Future<Boolean>>();
+		_maxOptimSteps += 2 * (qualities.length - 1); //one probe of the round is counted by the search bound
+		try {
+			for (int i = 1; i < qualities.length; ++i) {
+				probes.add(speculate(source, curve, candidates.get(i), qualities[i], maxVisualDiff));
+			}
+			passed[0] = optimize(source, curve, candidates.get(0), qualities[0], maxVisualDiff);
+			for (int i = 1; i < qualities.length; ++i) {
+				if (probes.get(i - 1) == null) { //no worker available anymore
+					passed[i] = optimize(source, curve, candidates.get(i), qualities[i], maxVisualDiff);
+				}
+			}
+		} finally {
+			for (Future<Boolean> probe : probes) {
+				if (probe != null) {
+					waitProbe(probe);
+				}
+			}
+		}
+		for (int i = 1; i < qualities.length; ++i) {
+			if (probes.get(i - 1) != null) {
+				passed[i] = getProbe(probes.get(i - 1));
+			}
+		}
+		return passed;
+	}
+	
+	//Waits for the end of probe, whatever its result
+	private void waitProbe(Future<Boolean> probe) {
+		boolean interrupted = false;
+		while (probe.isDone() == false) {
+			try {
+				probe.get();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			} catch (ExecutionException e) {
+				//thrown again by getProbe
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	//Result of a probe already done
+	private boolean getProbe(Future<Boolean> probe) throws IOException {
+		try {
+			return probe.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for a probe", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			} else if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+	
+	//Guess of the quality from the files already optimized (-1 if none)
+	private int predictQuality(double maxVisualDiff) {
+		if (_qualityPredictor == null) {
+			return -1;
+		}
+		if (_predictorKeys == null) {
+			_predictorKeys = QualityPredictor.getKeys(_src, getHeader());
+		}
+		int predictedQuality = _qualityPredictor.predict(_predictorKeys, maxVisualDiff);
+		if (predictedQuality >= 0) {
+			log(" - Predicted quality from the files already optimized: " + predictedQuality + "%");
+		}
+		return predictedQuality;
+	}
+	
+	private void learnQuality(double maxVisualDiff, int foundQuality) {
+		if ((_qualityPredictor != null) && (foundQuality >= 0)) {
+			if (_predictorKeys == null) {
+				_predictorKeys = QualityPredictor.getKeys(_src, getHeader());
+			}
+			_qualityPredictor.add(_predictorKeys, maxVisualDiff, foundQuality);
+		}
+	}
+	
+	//Downscale factor of the proxy search, 1 to search at full resolution.
+	//A curve already measured at full resolution (previous search) is more useful than the proxy.
+	private int getProxyFactor(DecodedSource source) {
+		if ((_proxySearch == false) || (_curve.isEmpty() == false)) {
+			return 1;
+		}
+		long nbPixels = source.getBufferedImage().getWidth() * (long)source.getBufferedImage().getHeight();
+		return (int)Math.ceil(Math.sqrt(nbPixels / (double)PROXY_PIXELS));
+	}
+	
+	//Search on a downscaled copy of the source, then try at full resolution the quality found and the one just below it, which are added to the curve:
+	//when the proxy was right, they are enough for the full resolution search to end without any other probe, else they narrow it.
+	//Returns the quality found on the proxy (-1 if none), the best guess for the full resolution search.
+	private int proxySearch(DecodedSource source, int factor, ReusableByteArrayOutputStream best, int maxQ, double maxVisualDiff, int predictedQuality) throws IOException {
+		DecodedSource proxy = source.downscale(factor);
+		int proxyQuality;
+		try {
+			log(" - Search on the image downscaled by " + factor + " (" + proxy.getBufferedImage().getWidth() + "x" + proxy.getBufferedImage().getHeight() + ") :");
+			proxyQuality = searchQuality(proxy, new QualityCurve(_src), null, maxQ, maxVisualDiff, predictedQuality);
+		} finally {
+			proxy.release();
+		}
 		
-		if ((foundQuality >= 0) && (foundQuality < 100)) {
-			log(" - [OK] Best quality found is " + foundQuality + "%");
+		int quality = (proxyQuality >= 0) ? proxyQuality : maxQ;
+		log(" - Confirm quality " + quality + "% at full resolution :");
+		ReusableByteArrayOutputStream candidate = new ReusableByteArrayOutputStream();
+		if (optimize(source, _curve, candidate, quality, maxVisualDiff)) {
+			best.swap(candidate);
+			if ((quality > 0) && optimize(source, _curve, candidate, quality - 1, maxVisualDiff)) {
+				best.swap(candidate);
+			}
+		}
+		return proxyQuality;
+	}
+	
+	//The curve is kept as long as the source file does not change
+	private void loadCurve() {
+		if ((_curve != null) && _curve.isValidFor(_src)) {
+			return ;
+		}
+		_curve = _curveSidecar ? QualityCurve.load(getCurveSidecar(), _src) : null;
+		if (_curve == null) {
+			_curve = new QualityCurve(_src);
+		}
+	}
+	
+	private File getCurveSidecar() {
+		return new File(_dst.getParentFile(), _dst.getName() + ".curve");
+	}
+	
+	//Quality the source file was saved with, estimated from its quantization tables without decoding it (-1 if unknown)
+	private int estimateSrcQuality() {
+		JPEGHeader header = getHeader();
+		return (header != null) ? header.estimateQuality() : -1;
+	}
+	
+	private void writeDst(ReusableByteArrayOutputStream jpeg) throws IOException {
+		_dstSize = jpeg.size();
+		if (_deferWrites) {
+			_pendingDst = jpeg;
+			return ;
+		}
+		if (_dst.exists()) {
+			log("   * Deleting existing destination file.");
+			_dst.delete();
+		}
+		log("   * Writing best candidate to destination file.");
+		jpeg.writeTo(_dst);
+	}
+	
+	private void copySrcToDst() throws IOException {
+		if (_deferWrites) {
+			_pendingCopy = true;
+			return ;
+		}
+		if (_dst.getAbsolutePath().compareTo(_src.getAbsolutePath()) != 0) {
 			if (_dst.exists()) {
 				log("   * Deleting existing destination file.");
 				_dst.delete();
+			}				
+			log("   * Copying source file to destination.");
+			if (_srcData != null) {
+				_srcData.writeTo(_dst);
+			} else {
+				FileUtils.copyFile(_src, _dst);
 			}
-			log("   * Creating result destination file.");
-			ImageUtils.createJPEG(_src, _dst, foundQuality);
-			return true;
-		} else {
-			log(" - [KO] Unable to optimize the file");
-			return false;
 		}
 	}
 	
+	private DecodedSource decodeSource() throws IOException {
+		return (_srcData != null) ? new DecodedSource(_src, _srcData) : new DecodedSource(_src);
+	}
+	
 	public void optimize(File dstDir, double maxVisualDiff, long minFileSizeToOptimize, boolean overwriteDst) throws IOException {
-		System.out.println("Max Diff : " + maxVisualDiff);
+		begin();
+		int state = process(dstDir, maxVisualDiff, minFileSizeToOptimize, overwriteDst);
+		_processingTime = System.currentTimeMillis() - _start;
+		end(state);
+	}
+	
+	//-------------------------------------------------------------------------
+	//-- Same as optimize, in 3 steps (see JPEGFilesBatch.setPipelined): readSource and write only do I/O, search only uses the CPU
+	//-------------------------------------------------------------------------
+	
+	//Read the whole source file in memory, and what the search needs from the disk for maxVisualDiff (see prefetch): the next steps do not read anything anymore
+	public void readSource(double maxVisualDiff) throws IOException {
+		begin();
+		try {
+			_srcData = new ReusableByteArrayOutputStream();
+			_srcData.readFrom(_src);
+			prefetch(maxVisualDiff);
+		} finally {
+			_processingTime += System.currentTimeMillis() - _start;
+		}
+	}
+	
+	//Same as optimize, but the destination file is only written by write()
+	public void search(File dstDir, double maxVisualDiff, long minFileSizeToOptimize, boolean overwriteDst) throws IOException {
+		long start = System.currentTimeMillis();
+		_deferWrites = true;
+		boolean done = false;
+		try {
+			_pendingState = process(dstDir, maxVisualDiff, minFileSizeToOptimize, overwriteDst);
+			done = true;
+		} finally {
+			_processingTime += System.currentTimeMillis() - start;
+			_deferWrites = false;
+			if (done == false) {
+				releaseStepsData();
+			}
+		}
+	}
+	
+	public void write() throws IOException {
+		long start = System.currentTimeMillis();
+		try {
+			if (_pendingDst != null) {
+				writeDst(_pendingDst);
+			} else if (_pendingCopy) {
+				copySrcToDst();
+			}
+			if (_pendingCurve) {
+				saveCurve();
+			}
+			if (_pendingCacheResult != null) {
+				storeInCache(_pendingMaxVisualDiff, _pendingCacheResult);
+			}
+			_processingTime += System.currentTimeMillis() - start;
+			end(_pendingState);
+		} finally {
+			releaseStepsData();
+		}
+	}
+	
+	//Also to call when a step failed, so the file does not keep its buffers
+	public void releaseStepsData() {
+		_srcData = null;
+		_pendingDst = null;
+		_pendingCopy = false;
+		_pendingCurve = false;
+		_pendingCacheResult = null;
+		_srcHash = null;
+		_cachedResult = null;
+	}
+	
+	private void begin() {
 		_start = System.currentTimeMillis();
+		_processingTime = 0;
 		setState(OPTIMIZING);
 		log("Optimizing " + _src.getAbsolutePath() + " (" + ReadableUtils.fileSize(_originalSrcSize) + ")");
-		
+	}
+	
+	//Returns the new state of the file
+	private int process(File dstDir, double maxVisualDiff, long minFileSizeToOptimize, boolean overwriteDst) throws IOException {
+		System.out.println("Max Diff : " + maxVisualDiff);
 		if (_dst.exists() && (overwriteDst == false)) {
-			setState(OPTIMIZED_OVERWRITE_NOT_ALLOWED);
-		} else {
-			if (_src.length() <= minFileSizeToOptimize) {
-				if (_dst.getAbsolutePath().compareTo(_src.getAbsolutePath()) != 0) {
-					log(" - File too small, copy source file to destination.");
-					if (_dst.exists()) {
-						log("   * Deleting existing destination file.");
-						_dst.delete();
-					}				
-					log("   * Copying source file to destination.");
-					FileUtils.copyFile(_src, _dst);
-				}
-				setState(OPTIMIZED_UNNECESSARY);
-			} else {
-				boolean isOptimized = optimize(dstDir, maxVisualDiff);
-				setState(isOptimized ? OPTIMIZED_OK : OPTIMIZED_KO);
-			}
+			return OPTIMIZED_OVERWRITE_NOT_ALLOWED;
 		}
-		
+		long srcSize = (_srcData != null) ? _srcData.size() : _src.length();
+		if (srcSize <= minFileSizeToOptimize) {
+			log(" - File too small, copy source file to destination.");
+			copySrcToDst();
+			return OPTIMIZED_UNNECESSARY;
+		}
+		int state = optimize(dstDir, maxVisualDiff);
+		if (state == OPTIMIZED_UNNECESSARY) {
+			copySrcToDst();
+		}
+		return state;
+	}
+	
+	private void end(int state) {
+		setState(state);
 		_end = System.currentTimeMillis();
 		
 		if (_state == OPTIMIZED_OK) {
@@ -238,7 +879,7 @@ public class JPEGFiles {
 		} else if (_state == OPTIMIZED_KO) {
 			error("Unable to optimize file (too many visual difference when compressing).");
 		} else if (_state == OPTIMIZED_UNNECESSARY) {
-			success("Optimization unecessary (file already too small).");
+			success("Optimization unecessary (file already too small or already compressed enough).");
 		} else if (_state == OPTIMIZED_OVERWRITE_NOT_ALLOWED) {
 			warn("Unable to optimize file (destination file already exists and overwrite is not allowed).");
 		}
@@ -246,26 +887,92 @@ public class JPEGFiles {
 		log("--------------------------------------------------------------------------------------");
 	}
 	
+	//"What if" analysis: search the best quality for every max visual diff, without writing anything, and add the results to analysis
+	public void analyze(ThresholdAnalysis analysis, long minFileSizeToOptimize) throws IOException {
+		_start = System.currentTimeMillis();
+		setState(OPTIMIZING);
+		log("Analyzing " + _src.getAbsolutePath() + " (" + ReadableUtils.fileSize(_originalSrcSize) + ")");
+		
+		double[] maxVisualDiffs = analysis.getMaxVisualDiffs();
+		if (_src.length() <= minFileSizeToOptimize) {
+			log(" - File too small.");
+			for (int i = 0; i < maxVisualDiffs.length; ++i) {
+				analysis.add(i, OPTIMIZED_UNNECESSARY, _originalSrcSize, _originalSrcSize, 0);
+			}
+		} else {
+			int maxQ = getMaxSearchQuality();
+			loadCurve();
+			_maxOptimSteps = 2 * maxVisualDiffs.length * _qualitySearch.getMaxProbes(maxQ);
+			DecodedSource source = decodeSource();
+			_earlyAbort = false;
+			try {
+				for (int i = maxVisualDiffs.length - 1; i >= 0; --i) { //from the highest max diff: its search measures the low qualities, then the next ones only need to go up
+					log(" - Max visual diff " + ReadableUtils.rate(maxVisualDiffs[i] / 100.) + " :");
+					int foundQuality = searchQuality(source, _curve, null, maxQ, maxVisualDiffs[i], predictQuality(maxVisualDiffs[i]));
+					learnQuality(maxVisualDiffs[i], foundQuality);
+					int state = (foundQuality >= 0) ? OPTIMIZED_OK : (maxQ < 100 ? OPTIMIZED_UNNECESSARY : OPTIMIZED_KO);
+					long size = (foundQuality >= 0) ? _curve.get(foundQuality).getSize() : _originalSrcSize;
+					log("   => " + (foundQuality >= 0 ? "quality " + foundQuality + "%, " + ReadableUtils.fileSize(size) : "not optimized"));
+					analysis.add(i, state, _originalSrcSize, size, _curve.estimateSearchTime(maxVisualDiffs[i] / 100., maxQ, _qualitySearch));
+				}
+			} finally {
+				_earlyAbort = true;
+				release(source);
+			}
+			if (_curveSidecar) {
+				try {
+					_curve.save(getCurveSidecar());
+				} catch (IOException e) {
+					warn("Unable to save the quality curve: " + e.getMessage());
+				}
+			}
+		}
+		
+		_end = System.currentTimeMillis();
+		_processingTime = _end - _start;
+		analysis.addTotalTime(_end - _start);
+		setState(ANALYZED);
+		log("Done in " + ReadableUtils.interval(_end-_start));
+		log("--------------------------------------------------------------------------------------");
+	}
+	
+	//The file was already optimized with the same settings by a previous run (see OptimizationManifest)
+	public void skipAlreadyOptimized() {
+		_start = System.currentTimeMillis();
+		setState(ALREADY_OPTIMIZED);
+		_end = _start;
+		_processingTime = 0;
+		success("Skipping " + _src.getAbsolutePath() + " (already optimized with the same settings).");
+	}
+	
 	//----------------------------------------------------------
 	
 	private void log(String txt) {
 		System.out.println(txt);		
-		_loger.log(txt, true);
+		if (_loger != null) {
+			_loger.log(txt, true);
+		}
 	}
 	
 	private void error(String txt) {
 		System.err.println(txt);		
-		_loger.error(txt, true);	
+		if (_loger != null) {
+			_loger.error(txt, true);
+		}	
 	}
 	
 	private void warn(String txt) {
 		System.out.println(txt);		
-		_loger.warn(txt, true);
+		if (_loger != null) {
+			_loger.warn(txt, true);
+		}
 	}
 	
 	private void success(String txt) {
 		System.out.println(txt);		
-		_loger.success(txt, true);
+		if (_loger != null) {
+			_loger.success(txt, true);
+		}
 	}
-
+	
 }
@@ -0,0 +1,531 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import utils.JPEGHeader;
+
+//Optimize a list of files with a pool of workers, each worker optimizing one file at a time
+public class JPEGFilesBatch {
+	
+	private static final JPEGFiles END_OF_FILES = new JPEGFiles(new File("")); //put in a queue of the pipeline once per consumer, when the previous stage is done
+	
+	private List<JPEGFiles> _files;
+	private File _dstDir;
+	private double _maxVisualDiff;
+	private long _minFileSizeToOptimize;
+	private boolean _overwriteDst;
+	
+	private int _nbThreads;
+	private JPEGFilesBatchListener _listener;
+	private OptimizationManifest _manifest;
+	private QualityCache _qualityCache;
+	private boolean _curveSidecars;
+	private ThresholdAnalysis _analysis;
+	private QualitySearch _qualitySearch;
+	private QualityPredictor _qualityPredictor;
+	private boolean _proxySearch;
+	private boolean _sampledDiff;
+	private MemoryBudget _memoryBudget;
+	private Map<JPEGFiles, Long> _memoryEstimates; //see MemoryBudget.estimate, of the files to optimize
+	private boolean _pipelined;
+	private boolean _parallelProbes;
+	private IdleWorkers _idleWorkers; //workers with no file left to start, during run
+	
+	private AtomicInteger _nbFilesDone;
+	private AtomicLong _earnSize;
+	
+	public JPEGFilesBatch(List<JPEGFiles> files, File dstDir, double maxVisualDiff, long minFileSizeToOptimize, boolean overwriteDst) {
+		_files = files;
+		_dstDir = dstDir;
+		_maxVisualDiff = maxVisualDiff;
+		_minFileSizeToOptimize = minFileSizeToOptimize;
+		_overwriteDst = overwriteDst;
+		_nbThreads = getDefaultNbThreads();
+		_listener = null;
+		_manifest = null;
+		_qualityCache = null;
+		_curveSidecars = false;
+		_analysis = null;
+		_qualitySearch = QualitySearch.INTERPOLATION;
+		_qualityPredictor = new QualityPredictor();
+		_proxySearch = false;
+		_sampledDiff = false;
+		_memoryBudget = new MemoryBudget();
+		_memoryEstimates = new ConcurrentHashMap<JPEGFiles, Long>();
+		_pipelined = false;
+		_parallelProbes = false;
+		_nbFilesDone = new AtomicInteger(0);
+		_earnSize = new AtomicLong(0);
+	}
+	
+	public static int getDefaultNbThreads() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+	
+	public void setNbThreads(int nbThreads) {
+		_nbThreads = Math.max(1, nbThreads);
+	}
+	
+	public int getNbThreads() {
+		return _nbThreads;
+	}
+	
+	public void setListener(JPEGFilesBatchListener listener) {
+		_listener = listener;
+	}
+	
+	//Files already optimized with the same settings (according to the manifest) are skipped, and the manifest is updated with the new results
+	public void setManifest(OptimizationManifest manifest) {
+		_manifest = manifest;
+	}
+	
+	public void setQualityCache(QualityCache qualityCache) {
+		_qualityCache = qualityCache;
+	}
+	
+	//See JPEGFiles.setCurveSidecar
+	public void setCurveSidecars(boolean curveSidecars) {
+		_curveSidecars = curveSidecars;
+	}
+	
+	//Strategy used to pick the qualities to try (see QualitySearch)
+	public void setQualitySearch(QualitySearch qualitySearch) {
+		_qualitySearch = qualitySearch;
+	}
+	
+	//Warm start of the searches from the results of the files already optimized in the batch (null to search every file on its own)
+	public void setQualityPredictor(QualityPredictor qualityPredictor) {
+		_qualityPredictor = qualityPredictor;
+	}
+	
+	//See JPEGFiles.setProxySearch
+	public void setProxySearch(boolean proxySearch) {
+		_proxySearch = proxySearch;
+	}
+	
+	//See JPEGFiles.setSampledDiff
+	public void setSampledDiff(boolean sampledDiff) {
+		_sampledDiff = sampledDiff;
+	}
+	
+	//Files are started only when their estimated memory fits in the budget (null to start them as soon as a worker is free)
+	public void setMemoryBudget(MemoryBudget memoryBudget) {
+		_memoryBudget = memoryBudget;
+	}
+	
+	//Pipeline mode: the source files are read and the destination files are written by I/O threads, while the workers only search the qualities.
+	//Bounded queues between the stages keep the readers just ahead of the workers, so a slow (network) storage does not leave the cores idle.
+	//The searches use one thread per core at most, the other threads of the batch only wait for the storage.
+	//Not used in analysis mode (nothing is written).
+	public void setPipelined(boolean pipelined) {
+		_pipelined = pipelined;
+	}
+	
+	//See JPEGFiles.setParallelProbes
+	public void setParallelProbes(boolean parallelProbes) {
+		_parallelProbes = parallelProbes;
+	}
+	
+	//Analysis mode: nothing is written, the files are searched for every max visual diff of the analysis (the max visual diff of the batch is ignored)
+	public void setAnalysis(ThresholdAnalysis analysis) {
+		_analysis = analysis;
+	}
+	
+	public int getNbFiles() {
+		return _files.size();
+	}
+	
+	public int getNbFilesDone() {
+		return _nbFilesDone.get();
+	}
+	
+	public long getEarnSize() {
+		return _earnSize.get();
+	}
+	
+	//Blocks until every file of the batch has been processed
+	public void run() throws InterruptedException, IOException {
+		try {
+			FileScheduler scheduler = schedule();
+			int nbWorkers = isPipelined() ? getNbSearchers() : _nbThreads;
+			_idleWorkers = new IdleWorkers(nbWorkers, _memoryBudget);
+			for (int i = scheduler.size(); i < nbWorkers; ++i) { //more workers than files: the extra ones are idle from the start
+				_idleWorkers.add();
+			}
+			if (isPipelined()) {
+				runPipeline(scheduler);
+			} else {
+				runWorkers(scheduler);
+			}
+		} finally {
+			if (_idleWorkers != null) {
+				_idleWorkers.shutdown();
+			}
+			if (_manifest != null) {
+				_manifest.save();
+			}
+		}
+	}
+	
+	private boolean isPipelined() {
+		return _pipelined && (_analysis == null);
+	}
+	
+	//Files already optimized (according to the manifest) are done at once, without reading their header. The other ones are estimated and scheduled:
+	//most expensive first, and the files too big for the memory budget after the other ones (they run alone, so the other ones still use every worker).
+	//The headers are read by several I/O threads, so a slow (network) storage does not delay the start of the batch.
+	private FileScheduler schedule() throws InterruptedException {
+		final FileScheduler scheduler = new FileScheduler();
+		final Queue<JPEGFiles> files = new ConcurrentLinkedQueue<JPEGFiles>(_files);
+		ExecutorService io = newIOExecutor();
+		try {
+			for (int i = 0; i < Math.min(_nbThreads, _files.size()); ++i) {
+				io.execute(new Runnable() {
+					@Override
+					public void run() {
+						JPEGFiles jpegFile;
+						while ((jpegFile = files.poll()) != null) {
+							schedule(jpegFile, scheduler);
+						}
+					}
+				});
+			}
+			io.shutdown();
+			while (io.awaitTermination(1, TimeUnit.SECONDS) == false) {
+				//wait for the headers
+			}
+		} finally {
+			io.shutdownNow();
+		}
+		return scheduler;
+	}
+	
+	private void schedule(JPEGFiles jpegFile, FileScheduler scheduler) {
+		if (jpegFile.getSrc() == null) {
+			fileDone(jpegFile);
+			return ;
+		}
+		if ((_analysis == null) && (_manifest != null) && _manifest.isUpToDate(jpegFile, _maxVisualDiff, _minFileSizeToOptimize)) {
+			if (_listener != null) {
+				_listener.fileStarted(jpegFile);
+			}
+			prepare(jpegFile);
+			jpegFile.skipAlreadyOptimized();
+			addEarnSize(jpegFile);
+			fileDone(jpegFile);
+			return ;
+		}
+		JPEGHeader header = jpegFile.getHeader(); //the only read of the header of the file
+		boolean oversized = false;
+		if (_memoryBudget != null) {
+			long memory = MemoryBudget.estimate(jpegFile.getSrc(), header);
+			if (isPipelined()) { //the whole source file is kept in memory until its destination is written
+				memory += jpegFile.getSrc().length();
+			}
+			_memoryEstimates.put(jpegFile, memory);
+			oversized = _memoryBudget.isOversized(memory);
+		}
+		scheduler.add(jpegFile, header, oversized);
+	}
+	
+	private void runWorkers(final FileScheduler scheduler) throws InterruptedException {
+		int nbFiles = scheduler.size();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(_nbThreads, Math.max(1, nbFiles)));
+		try {
+			for (int i = 0; i < nbFiles; ++i) {
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						optimize(scheduler.next(), scheduler); //picked when a worker is free, with the costs learned from the files already done
+						if (scheduler.isEmpty()) { //no file left for this worker: it helps the files still running
+							_idleWorkers.add();
+						}
+					}
+				});
+			}
+			pool.shutdown();
+			while (pool.awaitTermination(1, TimeUnit.SECONDS) == false) {
+				//wait for the workers
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	private void prepare(JPEGFiles jpegFile) {
+		jpegFile.setQualitySearch(_qualitySearch);
+		jpegFile.setQualityPredictor(_qualityPredictor);
+		jpegFile.setProxySearch(_proxySearch);
+		jpegFile.setSampledDiff(_sampledDiff);
+		jpegFile.setQualityCache(_qualityCache);
+		jpegFile.setCurveSidecar(_curveSidecars);
+		jpegFile.setIdleWorkers(_idleWorkers);
+		jpegFile.setParallelProbes(_parallelProbes);
+	}
+	
+	private void optimize(JPEGFiles jpegFile, FileScheduler scheduler) {
+		if (_listener != null) {
+			_listener.fileStarted(jpegFile);
+		}
+		try {
+			prepare(jpegFile);
+			Long memory = _memoryEstimates.get(jpegFile);
+			if (memory != null) {
+				_memoryBudget.acquire(memory);
+			}
+			try {
+				if (_analysis != null) {
+					jpegFile.analyze(_analysis, _minFileSizeToOptimize);
+				} else {
+					jpegFile.optimize(_dstDir, _maxVisualDiff, _minFileSizeToOptimize, _overwriteDst);
+					learnCost(scheduler, jpegFile, jpegFile.getElaspedTime());
+					updateManifest(jpegFile);
+				}
+			} finally {
+				if (memory != null) {
+					_memoryBudget.release(memory);
+				}
+			}
+			addEarnSize(jpegFile);
+		} catch (IOException e) {
+			fileFailed(jpegFile, e);
+		} catch (InterruptedException e) { //batch cancelled while waiting for memory
+			Thread.currentThread().interrupt();
+			fileFailed(jpegFile, e);
+		} catch (RuntimeException e) {
+			fileFailed(jpegFile, e);
+		}
+		fileDone(jpegFile);
+	}
+	
+	private void learnCost(FileScheduler scheduler, JPEGFiles jpegFile, long time) {
+		if (jpegFile.getCurrentOptimStep() >= 2) { //at least one probe (encode and diff): a file copied or found in the quality cache says nothing of its cost
+			scheduler.done(jpegFile, time);
+		}
+	}
+	
+	//The file itself is done at this point: a manifest which can not be saved is only a warning, the whole manifest is saved again at the end of the batch
+	private void updateManifest(JPEGFiles jpegFile) {
+		if (_manifest != null) {
+			_manifest.update(jpegFile, _maxVisualDiff, _minFileSizeToOptimize);
+			try {
+				_manifest.saveIfNeeded();
+			} catch (IOException e) {
+				System.err.println("Warning: unable to save the manifest: " + e.getMessage());
+			}
+		}
+	}
+	
+	private void addEarnSize(JPEGFiles jpegFile) {
+		if (jpegFile.getState() == JPEGFiles.ALREADY_OPTIMIZED) { //earned by a previous run
+			return ;
+		}
+		Long earn = jpegFile.getEarnSize();
+		if (earn != null) {
+			_earnSize.addAndGet(earn);
+		}
+	}
+	
+	//synchronized: the listener is called in the order of the count, so the progress it shows never goes back
+	private synchronized void fileDone(JPEGFiles jpegFile) {
+		int nbFilesDone = _nbFilesDone.incrementAndGet();
+		if (_listener != null) {
+			_listener.fileDone(jpegFile, nbFilesDone, _files.size());
+		}
+	}
+	
+	//-------------------------------------------------------------------------
+	//-- Pipeline mode: read -> search -> write
+	//-------------------------------------------------------------------------
+	
+	private void runPipeline(final FileScheduler scheduler) throws InterruptedException {
+		final BlockingQueue<JPEGFiles> toSearch = new ArrayBlockingQueue<JPEGFiles>(_nbThreads);
+		final BlockingQueue<JPEGFiles> toWrite = new ArrayBlockingQueue<JPEGFiles>(_nbThreads);
+		final int nbStageThreads = Math.min(_nbThreads, Math.max(1, scheduler.size()));
+		final int nbSearchers = Math.min(nbStageThreads, getNbSearchers());
+		final AtomicInteger nbReadersRunning = new AtomicInteger(nbStageThreads);
+		final AtomicInteger nbSearchersRunning = new AtomicInteger(nbSearchers);
+		
+		ExecutorService io = newIOExecutor();
+		ExecutorService cpu = Executors.newFixedThreadPool(nbSearchers);
+		try {
+			for (int i = 0; i < nbStageThreads; ++i) {
+				io.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							JPEGFiles jpegFile;
+							while ((jpegFile = scheduler.next()) != null) {
+								read(jpegFile, toSearch);
+							}
+						} catch (InterruptedException e) { //batch cancelled
+							Thread.currentThread().interrupt();
+						} finally {
+							if (nbReadersRunning.decrementAndGet() == 0) {
+								endOfFiles(toSearch, nbSearchers);
+							}
+						}
+					}
+				});
+				if (i < nbSearchers) {
+					cpu.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								JPEGFiles jpegFile;
+								while ((jpegFile = toSearch.take()) != END_OF_FILES) {
+									search(jpegFile, toWrite, scheduler);
+								}
+								_idleWorkers.add(); //no file left for this worker: it helps the files still searched
+							} catch (InterruptedException e) { //batch cancelled
+								Thread.currentThread().interrupt();
+							} finally {
+								if (nbSearchersRunning.decrementAndGet() == 0) {
+									endOfFiles(toWrite, nbStageThreads);
+								}
+							}
+						}
+					});
+				}
+				io.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							JPEGFiles jpegFile;
+							while ((jpegFile = toWrite.take()) != END_OF_FILES) {
+								write(jpegFile);
+							}
+						} catch (InterruptedException e) { //batch cancelled
+							Thread.currentThread().interrupt();
+						}
+					}
+				});
+			}
+			cpu.shutdown();
+			io.shutdown();
+			while (io.awaitTermination(1, TimeUnit.SECONDS) == false) {
+				//wait for the writers (the last stage)
+			}
+		} finally {
+			cpu.shutdownNow();
+			io.shutdownNow();
+		}
+	}
+	
+	//The searchers of the pipeline only use the CPU: more of them than cores would only share the cores
+	private int getNbSearchers() {
+		return Math.min(_nbThreads, Runtime.getRuntime().availableProcessors());
+	}
+	
+	//Virtual threads when the JVM has them (Java 21+): a blocked read or write costs no platform thread. The sources are built for older JVM, hence the reflection.
+	private static ExecutorService newIOExecutor() {
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+	
+	private static void endOfFiles(BlockingQueue<JPEGFiles> queue, int nbConsumers) {
+		try {
+			for (int i = 0; i < nbConsumers; ++i) {
+				queue.put(END_OF_FILES);
+			}
+		} catch (InterruptedException e) { //batch cancelled: the consumers are interrupted too
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void read(JPEGFiles jpegFile, BlockingQueue<JPEGFiles> toSearch) throws InterruptedException {
+		if (_listener != null) {
+			_listener.fileStarted(jpegFile);
+		}
+		prepare(jpegFile);
+		Long memory = _memoryEstimates.get(jpegFile);
+		if (memory != null) {
+			try {
+				_memoryBudget.acquire(memory);
+			} catch (InterruptedException e) {
+				fileFailed(jpegFile, e);
+				fileDone(jpegFile);
+				throw e;
+			}
+		}
+		try {
+			jpegFile.readSource(_maxVisualDiff);
+		} catch (IOException e) {
+			pipelineFailed(jpegFile, e);
+			return ;
+		} catch (RuntimeException e) {
+			pipelineFailed(jpegFile, e);
+			return ;
+		}
+		toSearch.put(jpegFile);
+	}
+	
+	private void search(JPEGFiles jpegFile, BlockingQueue<JPEGFiles> toWrite, FileScheduler scheduler) throws InterruptedException {
+		try {
+			long start = System.currentTimeMillis();
+			jpegFile.search(_dstDir, _maxVisualDiff, _minFileSizeToOptimize, _overwriteDst);
+			learnCost(scheduler, jpegFile, System.currentTimeMillis() - start);
+		} catch (IOException e) {
+			pipelineFailed(jpegFile, e);
+			return ;
+		} catch (RuntimeException e) {
+			pipelineFailed(jpegFile, e);
+			return ;
+		}
+		toWrite.put(jpegFile);
+	}
+	
+	private void write(JPEGFiles jpegFile) {
+		try {
+			jpegFile.write();
+			updateManifest(jpegFile);
+			addEarnSize(jpegFile);
+		} catch (IOException e) {
+			pipelineFailed(jpegFile, e);
+			return ;
+		} catch (RuntimeException e) {
+			pipelineFailed(jpegFile, e);
+			return ;
+		}
+		releaseMemory(jpegFile);
+		fileDone(jpegFile);
+	}
+	
+	private void pipelineFailed(JPEGFiles jpegFile, Exception e) {
+		jpegFile.releaseStepsData();
+		releaseMemory(jpegFile);
+		fileFailed(jpegFile, e);
+		fileDone(jpegFile);
+	}
+	
+	private void releaseMemory(JPEGFiles jpegFile) {
+		Long memory = _memoryEstimates.get(jpegFile);
+		if (memory != null) {
+			_memoryBudget.release(memory);
+		}
+	}
+	
+	private void fileFailed(JPEGFiles jpegFile, Exception e) {
+		e.printStackTrace();
+		if (_listener != null) {
+			_listener.fileFailed(jpegFile, e);
+		}
+	}
+	
+}
@@ -0,0 +1,7 @@
+package core;
+
+public interface JPEGFilesBatchListener {
+	public void fileStarted(JPEGFiles jpegFile);
+	public void fileDone(JPEGFiles jpegFile, int nbFilesDone, int nbFiles);
+	public void fileFailed(JPEGFiles jpegFile, Exception e);
+}
@@ -0,0 +1,81 @@
+package core;
+
+import java.io.File;
+import java.util.LinkedList;
+
+import utils.JPEGHeader;
+
+//Part of the heap shared by the files optimized at the same time.
+//A file is started only when its estimated peak memory fits in what is left, and in the order of the requests (a big file is not starved by smaller ones).
+//A file bigger than the whole budget is started alone, once every other file is done.
+public class MemoryBudget {
+	
+	private static final double DEFAULT_HEAP_RATE = 0.7; //of the max heap, the rest is left to the gui, the codecs internal buffers...
+	private static final long FIXED_OVERHEAD = 16 * 1024 * 1024; //per file: codecs, diff bands, quality curve...
+	private static final int UNKNOWN_SIZE_RATE = 16; //when the header can not be read, estimated from the file size (about the compression rate of a photo)
+	
+	private long _capacity;
+	private long _used;
+	private LinkedList<Object> _waiting; //requests not started yet, in order
+	
+	public MemoryBudget() {
+		this((long)(Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_RATE));
+	}
+	
+	public MemoryBudget(long capacity) {
+		_capacity = capacity;
+		_used = 0;
+		_waiting = new LinkedList<Object>();
+	}
+	
+	public long getCapacity() {
+		return _capacity;
+	}
+	
+	public boolean isOversized(long bytes) {
+		return bytes > _capacity;
+	}
+	
+	//Peak memory used to optimize the file, from the dimensions of its SOF marker (nothing is decoded):
+	//the decoded source, the decoded candidate and the previous one while the size of the candidates changes (proxy search, see JPEGFiles), and the encoded best and current candidates (about 1 byte per pixel each, at most)
+	//header: of the file, null if it can not be read (the estimate is then made from the file size)
+	public static long estimate(File file, JPEGHeader header) {
+		long nbPixels = file.length() * UNKNOWN_SIZE_RATE / 3;
+		int nbComponents = 3;
+		if ((header != null) && header.hasFrame()) {
+			nbPixels = header.getWidth() * (long)header.getHeight();
+			nbComponents = header.getNbComponents();
+		}
+		return nbPixels * (3 * nbComponents + 2) + FIXED_OVERHEAD;
+	}
+	
+	//Blocks until bytes fit in the budget (or until nothing else is running, when bytes is bigger than the whole budget)
+	public synchronized void acquire(long bytes) throws InterruptedException {
+		Object request = new Object();
+		_waiting.addLast(request);
+		try {
+			while ((_waiting.getFirst() != request) || ((_used > 0) && (_used + bytes > _capacity))) {
+				wait();
+			}
+		} finally {
+			_waiting.remove(request); //also when interrupted, so the next requests are not blocked
+			notifyAll();
+		}
+		_used += bytes;
+	}
+	
+	//Same as acquire, without waiting: false if bytes do not fit now, or if other requests are waiting
+	public synchronized boolean tryAcquire(long bytes) {
+		if ((_waiting.isEmpty() == false) || (_used + bytes > _capacity)) {
+			return false;
+		}
+		_used += bytes;
+		return true;
+	}
+	
+	public synchronized void release(long bytes) {
+		_used -= bytes;
+		notifyAll();
+	}
+	
+}
@@ -0,0 +1,179 @@
+package core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+//Persistent record, in the destination directory, of the files already optimized: for each source file (by relative path),
+//its size and last modification date, and the settings used. A file whose source and settings did not change can be skipped.
+public class OptimizationManifest {
+	
+	public static final String FILENAME = "JpegOptimizer.manifest";
+	private static final long SAVE_INTERVAL = 30 * 1000; //ms
+	
+	private File _srcDir;
+	private File _file;
+	private Map<String, Entry> _entries;
+	private boolean _modified;
+	private long _lastSave;
+	
+	public OptimizationManifest(File srcDir, File dstDir) {
+		_srcDir = srcDir;
+		_file = new File(dstDir, FILENAME);
+		_entries = new HashMap<String, Entry>();
+		_modified = false;
+		_lastSave = System.currentTimeMillis();
+	}
+	
+	public File getFile() {
+		return _file;
+	}
+	
+	public synchronized int size() {
+		return _entries.size();
+	}
+	
+	//True if the file was already optimized with the same settings, and neither the source nor the destination changed since
+	public synchronized boolean isUpToDate(JPEGFiles jpegFile, double maxVisualDiff, long minFileSizeToOptimize) {
+		Entry entry = _entries.get(getKey(jpegFile.getSrc()));
+		if (entry == null) {
+			return false;
+		}
+		File src = jpegFile.getSrc();
+		File dst = jpegFile.getDst();
+		if ((entry._srcSize != src.length()) || (entry._srcLastModified != src.lastModified())) {
+			return false;
+		}
+		if ((entry._maxVisualDiff != maxVisualDiff) || (entry._minFileSizeToOptimize != minFileSizeToOptimize)) {
+			return false;
+		}
+		if ((entry._state != JPEGFiles.OPTIMIZED_KO) && ((dst == null) || (dst.exists() == false) || (dst.length() != entry._dstSize))) {
+			return false;
+		}
+		return true;
+	}
+	
+	//Record the result of an optimization. The source is read after the optimization: when source and destination are the same file, it is the optimized one.
+	public synchronized void update(JPEGFiles jpegFile, double maxVisualDiff, long minFileSizeToOptimize) {
+		int state = jpegFile.getState();
+		if ((state != JPEGFiles.OPTIMIZED_OK) && (state != JPEGFiles.OPTIMIZED_KO) && (state != JPEGFiles.OPTIMIZED_UNNECESSARY)) {
+			return ;
+		}
+		Entry entry = new Entry();
+		entry._srcSize = jpegFile.getSrc().length();
+		entry._srcLastModified = jpegFile.getSrc().lastModified();
+		entry._maxVisualDiff = maxVisualDiff;
+		entry._minFileSizeToOptimize = minFileSizeToOptimize;
+		entry._state = state;
+		entry._quality = (state == JPEGFiles.OPTIMIZED_OK) ? jpegFile.getJpegQualityFound() : -1;
+		entry._dstSize = ((jpegFile.getDst() != null) && jpegFile.getDst().exists()) ? jpegFile.getDst().length() : -1;
+		_entries.put(getKey(jpegFile.getSrc()), entry);
+		_modified = true;
+	}
+	
+	//Save the manifest if it was not saved for a while, so an interrupted batch does not lose everything
+	public synchronized void saveIfNeeded() throws IOException {
+		if (System.currentTimeMillis() - _lastSave >= SAVE_INTERVAL) {
+			save();
+		}
+	}
+	
+	public synchronized void load() throws IOException {
+		_entries.clear();
+		File file = _file;
+		if (file.exists() == false) {
+			file = getTmpFile(); //a save stopped after the old manifest was deleted (see save)
+			if (file.exists() == false) {
+				return ;
+			}
+		}
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if ((line.length() == 0) || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\t");
+				if (fields.length != 9) {
+					continue; //corrupted line, the file will be optimized again
+				}
+				try {
+					Entry entry = new Entry();
+					entry._srcSize = Long.parseLong(fields[1]);
+					entry._srcLastModified = Long.parseLong(fields[2]);
+					entry._maxVisualDiff = Double.parseDouble(fields[3]);
+					entry._minFileSizeToOptimize = Long.parseLong(fields[4]);
+					entry._state = Integer.parseInt(fields[5]);
+					entry._quality = Integer.parseInt(fields[6]);
+					entry._dstSize = Long.parseLong(fields[7]);
+					_entries.put(fields[8], entry);
+				} catch (NumberFormatException e) {
+					//corrupted line, the file will be optimized again
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		_modified = false;
+	}
+	
+	//Written in a temporary file first, then renamed over the previous manifest, so a crash while saving does not corrupt it.
+	//Where a rename can not replace a file (Windows), the previous manifest is deleted first: if the save stops between both, load reads the temporary file.
+	public synchronized void save() throws IOException {
+		_lastSave = System.currentTimeMillis();
+		if (_modified == false) {
+			return ;
+		}
+		File tmp = getTmpFile();
+		BufferedWriter writer = new BufferedWriter(new FileWriter(tmp));
+		try {
+			writer.write("#version\tsrcSize\tsrcLastModified\tmaxVisualDiff\tminSize\tstate\tquality\tdstSize\tpath\n");
+			for (Map.Entry<String, Entry> e : _entries.entrySet()) {
+				Entry entry = e.getValue();
+				writer.write("1\t" + entry._srcSize + "\t" + entry._srcLastModified + "\t" + entry._maxVisualDiff + "\t" + entry._minFileSizeToOptimize + "\t" + entry._state + "\t" + entry._quality + "\t" + entry._dstSize + "\t" + e.getKey() + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+		if (tmp.renameTo(_file) == false) {
+			if (_file.exists() && (_file.delete() == false)) {
+				throw new IOException("Unable to replace " + _file.getAbsolutePath());
+			}
+			if (tmp.renameTo(_file) == false) {
+				throw new IOException("Unable to rename " + tmp.getAbsolutePath() + " to " + _file.getAbsolutePath());
+			}
+		}
+		_modified = false;
+	}
+	
+	private File getTmpFile() {
+		return new File(_file.getParentFile(), FILENAME + ".tmp");
+	}
+	
+	//Path of the file relative to the source directory (absolute path if it is not inside it)
+	private String getKey(File src) {
+		String path = src.getAbsolutePath();
+		String srcDir = _srcDir.getAbsolutePath() + File.separator;
+		if (path.startsWith(srcDir)) {
+			path = path.substring(srcDir.length());
+		}
+		return path.replace(File.separatorChar, '/');
+	}
+	
+	private static class Entry {
+		private long _srcSize;
+		private long _srcLastModified;
+		private double _maxVisualDiff;
+		private long _minFileSizeToOptimize;
+		private int _state;
+		private int _quality;
+		private long _dstSize;
+	}
+	
+}
@@ -0,0 +1,113 @@
+package core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import utils.FileUtils;
+import utils.ReusableByteArrayOutputStream;
+
+//Results of previous optimizations, keyed by a hash of the source content and the max visual diff, so the same picture
+//found under another path (or in another batch) does not need a new search.
+//One small file per result, written through a temporary file and renamed: several processes (or machines sharing the
+//directory through a network mount) can use the same cache without any lock.
+public class QualityCache {
+	
+	private File _dir;
+	
+	public QualityCache(File dir) {
+		_dir = dir;
+	}
+	
+	public File getDir() {
+		return _dir;
+	}
+	
+	//Fast hash of the file content, see FileUtils.sampledHash
+	public String hash(File src) throws IOException {
+		return FileUtils.sampledHash(src);
+	}
+	
+	//Same hash, of a source file already read in memory
+	public String hash(ReusableByteArrayOutputStream srcData) throws IOException {
+		return FileUtils.sampledHash(srcData);
+	}
+	
+	//Returns null if the result is not known
+	public Result get(String hash, double maxVisualDiff) {
+		File file = getFile(hash, maxVisualDiff);
+		if (file.exists() == false) {
+			return null;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(file));
+			String[] fields = reader.readLine().split("\t");
+			return new Result(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), Long.parseLong(fields[2]));
+		} catch (Exception e) { //unreadable (or being written by another process): as if not cached
+			return null;
+		} finally {
+			try {
+				if (reader != null) {
+					reader.close();
+				}
+			} catch (IOException e) {
+			}
+		}
+	}
+	
+	public void put(String hash, double maxVisualDiff, Result result) throws IOException {
+		File file = getFile(hash, maxVisualDiff);
+		File dir = file.getParentFile();
+		if ((dir.exists() == false) && (dir.mkdirs() == false) && (dir.exists() == false)) {
+			throw new IOException("Unable to create cache directory " + dir.getAbsolutePath());
+		}
+		File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		BufferedWriter writer = new BufferedWriter(new FileWriter(tmp));
+		try {
+			writer.write(result.getState() + "\t" + result.getQuality() + "\t" + result.getSize() + "\n");
+		} finally {
+			writer.close();
+		}
+		if (tmp.renameTo(file) == false) {
+			file.delete();
+			if (tmp.renameTo(file) == false) {
+				tmp.delete();
+				throw new IOException("Unable to write cache file " + file.getAbsolutePath());
+			}
+		}
+	}
+	
+	private File getFile(String hash, double maxVisualDiff) {
+		return new File(new File(_dir, hash.substring(0, 2)), hash + "_" + maxVisualDiff + ".txt");
+	}
+	
+	public static class Result {
+		private int _state;
+		private int _quality;
+		private long _size;
+		
+		//state: OPTIMIZED_OK (then quality and size are the ones of the best candidate), OPTIMIZED_KO or OPTIMIZED_UNNECESSARY
+		public Result(int state, int quality, long size) {
+			_state = state;
+			_quality = quality;
+			_size = size;
+		}
+		
+		public int getState() {
+			return _state;
+		}
+		
+		public int getQuality() {
+			return _quality;
+		}
+		
+		public long getSize() {
+			return _size;
+		}
+	}
+	
+}
@@ -0,0 +1,233 @@
+package core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+//Every (quality, size, diff) measured for a source file by the quality search. As the visual diff decreases when the quality
+//increases, the curve tells for any max visual diff which qualities are known to pass or to fail, without encoding anything.
+public class QualityCurve {
+	
+	private long _srcSize;
+	private long _srcLastModified;
+	private TreeMap<Integer, Point> _points; //by quality
+	
+	public QualityCurve(File src) {
+		_srcSize = src.length();
+		_srcLastModified = src.lastModified();
+		_points = new TreeMap<Integer, Point>();
+	}
+	
+	private QualityCurve(long srcSize, long srcLastModified) {
+		_srcSize = srcSize;
+		_srcLastModified = srcLastModified;
+		_points = new TreeMap<Integer, Point>();
+	}
+	
+	//False if the source file changed since the curve was measured
+	public synchronized boolean isValidFor(File src) {
+		return (src.length() == _srcSize) && (src.lastModified() == _srcLastModified);
+	}
+	
+	public synchronized void add(Point point) {
+		Point previous = _points.get(point.getQuality());
+		if ((previous == null) || (previous.isExact() == false)) { //keep the most precise measure
+			_points.put(point.getQuality(), point);
+		}
+	}
+	
+	public synchronized Point get(int quality) {
+		return _points.get(quality);
+	}
+	
+	public synchronized List<Point> getPoints() {
+		return new ArrayList<Point>(_points.values());
+	}
+	
+	public synchronized boolean isEmpty() {
+		return _points.isEmpty();
+	}
+	
+	//Lowest quality known to pass maxDiff (rate between 0 and 1), -1 if none
+	public synchronized int getPassingQuality(double maxDiff) {
+		for (Point point : _points.values()) {
+			if (point.passes(maxDiff)) {
+				return point.getQuality();
+			}
+		}
+		return -1;
+	}
+	
+	//Highest quality known to fail maxDiff (rate between 0 and 1), -1 if none
+	public synchronized int getFailingQuality(double maxDiff) {
+		for (Point point : _points.descendingMap().values()) {
+			if (point.fails(maxDiff)) {
+				return point.getQuality();
+			}
+		}
+		return -1;
+	}
+	
+	//Time (ms) the search with strategy between 0 and maxQ alone would take for maxDiff, replaying it on the measured points
+	//(same steps as JPEGFiles.searchQuality, one probe at a time and without predicted quality).
+	//Qualities not measured are decided from the neighbour ones and counted with the average probe time.
+	public synchronized long estimateSearchTime(double maxDiff, int maxQ, QualitySearch strategy) {
+		if (_points.isEmpty()) {
+			return 0;
+		}
+		long averageTime = 0;
+		for (Point point : _points.values()) {
+			averageTime += point.getTime();
+		}
+		averageTime /= _points.size();
+		
+		int passingQuality = getPassingQuality(maxDiff);
+		int failingQuality = getFailingQuality(maxDiff);
+		QualityCurve probed = new QualityCurve(_srcSize, _srcLastModified); //points seen by the replayed search, as the strategy only knows them
+		long time = 0;
+		int minQ = 0;
+		int slowSteps = 0;
+		while (minQ <= maxQ) {
+			int quality = strategy.next(minQ, maxQ, maxDiff, probed, -1);
+			if ((quality < minQ) || (quality > maxQ) || (slowSteps >= QualitySearch.MAX_SLOW_STEPS)) {
+				quality = QualitySearch.bisect(minQ, maxQ);
+			}
+			int range = maxQ - minQ + 1;
+			Point point = _points.get(quality);
+			time += (point != null) ? point.getTime() : averageTime;
+			boolean passes = (point != null && point.passes(maxDiff)) || ((passingQuality >= 0) && (quality >= passingQuality));
+			boolean fails = (point != null && point.fails(maxDiff)) || (quality <= failingQuality);
+			if (passes) {
+				maxQ = quality-1;
+			} else if (fails) {
+				minQ = quality+1;
+			} else { //unknown: stop there
+				break;
+			}
+			probed.add((point != null) ? point : interpolate(quality, passes, maxDiff, averageTime));
+			slowSteps = (2 * (maxQ - minQ + 1) > range) ? slowSteps + 1 : 0;
+		}
+		return time;
+	}
+	
+	//Point not measured, decided from the neighbour ones: its diff is interpolated (log) between them, within the verdict
+	private Point interpolate(int quality, boolean passes, double maxDiff, long time) {
+		Point lower = (_points.floorEntry(quality) != null) ? _points.floorEntry(quality).getValue() : null;
+		Point upper = (_points.ceilingEntry(quality) != null) ? _points.ceilingEntry(quality).getValue() : null;
+		double diff;
+		if ((lower != null) && (upper != null)) {
+			double logLower = Math.log(Math.max(lower.getDiffLowerBound(), 1e-6));
+			double logUpper = Math.log(Math.max(upper.getDiffLowerBound(), 1e-6));
+			diff = Math.exp(logLower + (logUpper - logLower) * (quality - lower.getQuality()) / (upper.getQuality() - lower.getQuality()));
+		} else {
+			diff = (lower != null) ? lower.getDiffLowerBound() : upper.getDiffLowerBound();
+		}
+		diff = passes ? Math.min(diff, Math.nextAfter(maxDiff, 0)) : Math.max(diff, maxDiff);
+		return new Point(quality, 0, diff, diff, time);
+	}
+	
+	//-------------------------------------------------------------------------
+	//-- Sidecar file
+	//-------------------------------------------------------------------------
+	
+	//Returns null if the file does not exist, can not be read, or was measured on another version of the source
+	public static QualityCurve load(File file, File src) {
+		if (file.exists() == false) {
+			return null;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(file));
+			String[] header = reader.readLine().split("\t");
+			QualityCurve curve = new QualityCurve(src);
+			if ((Long.parseLong(header[0]) != curve._srcSize) || (Long.parseLong(header[1]) != curve._srcLastModified)) {
+				return null;
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				curve.add(new Point(Integer.parseInt(fields[0]), Long.parseLong(fields[1]), Double.parseDouble(fields[2]), Double.parseDouble(fields[3]), Long.parseLong(fields[4])));
+			}
+			return curve;
+		} catch (Exception e) {
+			return null;
+		} finally {
+			try {
+				if (reader != null) {
+					reader.close();
+				}
+			} catch (IOException e) {
+			}
+		}
+	}
+	
+	public synchronized void save(File file) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		try {
+			writer.write(_srcSize + "\t" + _srcLastModified + "\n");
+			for (Point point : _points.values()) {
+				writer.write(point.getQuality() + "\t" + point.getSize() + "\t" + point.getDiffLowerBound() + "\t" + point.getDiffUpperBound() + "\t" + point.getTime() + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+	}
+	
+	//-------------------------------------------------------------------------
+	
+	public static class Point {
+		private int _quality;
+		private long _size;
+		private double _diffLowerBound;
+		private double _diffUpperBound;
+		private long _time;
+		
+		//diff bounds are rates between 0 and 1 (equal when the diff was fully computed), time is the cost of the probe in ms
+		public Point(int quality, long size, double diffLowerBound, double diffUpperBound, long time) {
+			_quality = quality;
+			_size = size;
+			_diffLowerBound = diffLowerBound;
+			_diffUpperBound = diffUpperBound;
+			_time = time;
+		}
+		
+		public int getQuality() {
+			return _quality;
+		}
+		
+		public long getSize() {
+			return _size;
+		}
+		
+		public double getDiffLowerBound() {
+			return _diffLowerBound;
+		}
+		
+		public double getDiffUpperBound() {
+			return _diffUpperBound;
+		}
+		
+		public long getTime() {
+			return _time;
+		}
+		
+		public boolean isExact() {
+			return _diffLowerBound == _diffUpperBound;
+		}
+		
+		public boolean passes(double maxDiff) {
+			return _diffUpperBound < maxDiff;
+		}
+		
+		public boolean fails(double maxDiff) {
+			return _diffLowerBound >= maxDiff;
+		}
+	}
+	
+}
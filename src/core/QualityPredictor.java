@@ -0,0 +1,74 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import exif.Exif;
+import utils.JPEGHeader;
+
+//Guess of the quality a file will be optimized to, from the results of the files already optimized in the batch.
+//Photos from the same camera (EXIF Make and Model) with the same size end up within a few quality points of each other:
+//the guess is the median of the last results of the same camera and size, else of the same camera, else of any file.
+//Shared by every thread of a batch.
+public class QualityPredictor {
+	
+	private static final int NB_RECENT_RESULTS = 8; //per key: old results of a long batch should not weight on a new shoot
+	
+	private Map<String, LinkedList<Integer>> _results; //by maxVisualDiff + key
+	
+	public QualityPredictor() {
+		_results = new HashMap<String, LinkedList<Integer>>();
+	}
+	
+	//Keys of the file, from the most to the least specific: camera and size, camera, any file (header: of the file, null if it can not be read)
+	public static String[] getKeys(File file, JPEGHeader header) {
+		String camera = "";
+		try {
+			Exif exif = new Exif(file, false);
+			String make = exif.getString("Make");
+			String model = exif.getString("Model");
+			if ((make != null) || (model != null)) {
+				camera = make + "/" + model;
+			}
+		} catch (IOException e) {
+			//no exif: same camera as the other files without exif
+		} catch (RuntimeException e) {
+			//corrupted exif
+		}
+		String size = (header != null) ? header.getWidth() + "x" + header.getHeight() : ""; //unknown size
+		return new String[] {"camera:" + camera + "/" + size, "camera:" + camera, "*"};
+	}
+	
+	//Returns -1 if no file was optimized yet for maxVisualDiff
+	public synchronized int predict(String[] keys, double maxVisualDiff) {
+		for (String key : keys) {
+			LinkedList<Integer> results = _results.get(maxVisualDiff + "|" + key);
+			if (results != null) {
+				List<Integer> sorted = new ArrayList<Integer>(results);
+				Collections.sort(sorted);
+				return sorted.get(sorted.size() / 2);
+			}
+		}
+		return -1;
+	}
+	
+	public synchronized void add(String[] keys, double maxVisualDiff, int quality) {
+		for (String key : keys) {
+			LinkedList<Integer> results = _results.get(maxVisualDiff + "|" + key);
+			if (results == null) {
+				results = new LinkedList<Integer>();
+				_results.put(maxVisualDiff + "|" + key, results);
+			}
+			results.addLast(quality);
+			if (results.size() > NB_RECENT_RESULTS) {
+				results.removeFirst();
+			}
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package core;
+
+//Strategy picking the next quality to try while searching the lowest quality visually correct.
+//The search itself (see JPEGFiles.searchQuality) keeps the range [minQ, maxQ] still to explore: qualities below minQ fail, qualities above maxQ pass (or are not worth trying).
+//Whatever the strategy, the search falls back to a dichotomic step as soon as the strategy does not halve the range often enough, so it always ends.
+public abstract class QualitySearch {
+	
+	public static final QualitySearch BISECTION = new Bisection();
+	public static final QualitySearch INTERPOLATION = new Interpolation();
+	
+	public static final int MAX_SLOW_STEPS = 2; //probes allowed in a row without halving the range, before the dichotomic step
+	
+	public abstract String getName();
+	
+	//Next quality to try in [minQ, maxQ] for maxDiff (rate between 0 and 1), knowing the points already measured.
+	//predictedQuality is a guess of the result (-1 if none), that a strategy may use as a starting point.
+	//A quality outside [minQ, maxQ] is replaced by a dichotomic step.
+	public abstract int next(int minQ, int maxQ, double maxDiff, QualityCurve curve, int predictedQuality);
+	
+	//Max number of probes of a search between 0 and maxQ, one at a time: the range is halved at least once every MAX_SLOW_STEPS + 1 probes
+	public int getMaxProbes(int maxQ) {
+		return (MAX_SLOW_STEPS + 1) * getMaxBisections(maxQ);
+	}
+	
+	@Override
+	public String toString() {
+		return getName();
+	}
+	
+	//Returns null if unknown
+	public static QualitySearch get(String name) {
+		for (QualitySearch search : new QualitySearch[] {BISECTION, INTERPOLATION}) {
+			if (search.getName().equalsIgnoreCase(name)) {
+				return search;
+			}
+		}
+		return null;
+	}
+	
+	public static int bisect(int minQ, int maxQ) {
+		return (int)Math.floor((minQ + maxQ) / 2.);
+	}
+	
+	//Number of dichotomic steps needed to explore [0, maxQ]
+	public static int getMaxBisections(int maxQ) {
+		return (int)Math.ceil(Math.log(maxQ + 2) / Math.log(2));
+	}
+	
+	//nbProbes qualities splitting [minQ, maxQ] in nbProbes + 1 ranges of about the same size (every quality of the range if it has no more than nbProbes ones), by increasing quality.
+	//Whatever their verdicts, the range left is about (nbProbes + 1) times smaller: a round of probes tried at the same time (see JPEGFiles.setParallelProbes).
+	public static int[] split(int minQ, int maxQ, int nbProbes) {
+		int range = maxQ - minQ + 1;
+		int[] qualities = new int[Math.max(0, Math.min(nbProbes, range))];
+		for (int i = 0; i < qualities.length; ++i) {
+			qualities[i] = (qualities.length == range) ? minQ + i : minQ - 1 + (int)Math.round((i + 1) * (range + 1) / (double)(nbProbes + 1));
+		}
+		return qualities;
+	}
+	
+	//-------------------------------------------------------------------------
+	//-- Strategies
+	//-------------------------------------------------------------------------
+	
+	//Always the middle of the range: about log2(maxQ) probes, whatever the image
+	public static class Bisection extends QualitySearch {
+		
+		public String getName() {
+			return "bisection";
+		}
+		
+		public int next(int minQ, int maxQ, double maxDiff, QualityCurve curve, int predictedQuality) {
+			return bisect(minQ, maxQ);
+		}
+		
+		@Override
+		public int getMaxProbes(int maxQ) {
+			return getMaxBisections(maxQ);
+		}
+	}
+	
+	//The diff decreases smoothly with the quality, and its log is close to linear between two near qualities:
+	//the quality giving maxDiff is interpolated between the closest failing and passing points (secant), or extrapolated from the closest points when only one side is known.
+	//Rounded up, so a good guess passes and the next probe, just below it, confirms it. The guess is kept in the middle half of a wide range, as the log is only linear locally:
+	//about 15% fewer probes than the bisection on the test photos (4 to 7 probes, 2 with a good predicted quality).
+	public static class Interpolation extends QualitySearch {
+		
+		private static final int DEFAULT_FIRST_QUALITY = 85; //usual result for photos, when no prediction is given
+		private static final double DEFAULT_LOG_SLOPE = 0.05; //usual decrease of log(diff) per quality point, when only one point is known
+		private static final double MIN_DIFF = 1e-6; //avoid log(0)
+		
+		public String getName() {
+			return "interpolation";
+		}
+		
+		public int next(int minQ, int maxQ, double maxDiff, QualityCurve curve, int predictedQuality) {
+			QualityCurve.Point failing = curve.get(curve.getFailingQuality(maxDiff));
+			QualityCurve.Point passing = curve.get(curve.getPassingQuality(maxDiff));
+			if ((failing == null) && (passing == null)) {
+				return Math.max(minQ, Math.min(maxQ, (predictedQuality >= 0) ? predictedQuality : DEFAULT_FIRST_QUALITY));
+			}
+			if (((failing == null) || (passing == null)) && (((failing != null) ? failing : passing).getQuality() == predictedQuality)) { //the predicted quality is usually right or close: check the one just below (or above) it before extrapolating
+				return (failing == null) ? predictedQuality - 1 : predictedQuality + 1;
+			}
+			
+			//Only the exact points give the slope: a candidate rejected early only has a lower bound of its diff, about maxDiff whatever its quality,
+			//and a line through it would guess the quality just above it, again and again
+			QualityCurve.Point exactFailing = null;
+			QualityCurve.Point exactPassing = null;
+			for (QualityCurve.Point point : curve.getPoints()) {
+				if (point.isExact() && point.fails(maxDiff)) {
+					exactFailing = point;
+				} else if (point.isExact() && point.passes(maxDiff) && (exactPassing == null)) {
+					exactPassing = point;
+				}
+			}
+			
+			double quality;
+			if ((exactFailing != null) && (exactPassing != null)) {
+				quality = interpolate(exactFailing, exactPassing, maxDiff);
+			} else if ((exactFailing != null) || (exactPassing != null)) {
+				QualityCurve.Point known = (exactFailing != null) ? exactFailing : exactPassing;
+				QualityCurve.Point other = getNeighbour(curve, known);
+				if (other != null) {
+					quality = interpolate(known, other, maxDiff);
+				} else {
+					quality = known.getQuality() + (log(known) - Math.log(Math.max(maxDiff, MIN_DIFF))) / DEFAULT_LOG_SLOPE;
+				}
+			} else {
+				return bisect(minQ, maxQ);
+			}
+			
+			if (Double.isNaN(quality) || Double.isInfinite(quality)) {
+				return bisect(minQ, maxQ);
+			}
+			int next = (int)Math.ceil(quality - 1e-9);
+			int quarter = (maxQ - minQ + 1) / 4;
+			if (quarter >= 2) { //far from the measured points the guess is rough: at least a quarter of the range is left out, whatever the verdict
+				next = Math.max(minQ + quarter, Math.min(maxQ - quarter, next));
+			}
+			if (next > maxQ) { //the lowest passing quality is the guess: confirm it with the quality just below
+				return maxQ;
+			}
+			return (next < minQ) ? bisect(minQ, maxQ) : next; //below the failing ones: the exact points disagree with the inexact ones
+		}
+		
+		//Quality where the line through (q1, log(diff1)) and (q2, log(diff2)) reaches log(maxDiff)
+		private double interpolate(QualityCurve.Point p1, QualityCurve.Point p2, double maxDiff) {
+			double log1 = log(p1);
+			double log2 = log(p2);
+			if (log1 == log2) {
+				return Double.NaN;
+			}
+			return p1.getQuality() + (log1 - Math.log(Math.max(maxDiff, MIN_DIFF))) * (p2.getQuality() - p1.getQuality()) / (log1 - log2);
+		}
+		
+		//Exact point the closest to point (on any side), null if none
+		private QualityCurve.Point getNeighbour(QualityCurve curve, QualityCurve.Point point) {
+			QualityCurve.Point neighbour = null;
+			for (QualityCurve.Point other : curve.getPoints()) {
+				if ((other.getQuality() != point.getQuality()) && other.isExact() && ((neighbour == null) || (Math.abs(other.getQuality() - point.getQuality()) < Math.abs(neighbour.getQuality() - point.getQuality())))) {
+					neighbour = other;
+				}
+			}
+			return neighbour;
+		}
+		
+		private double log(QualityCurve.Point point) {
+			return Math.log(Math.max(point.getDiffLowerBound(), MIN_DIFF));
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package core;
+
+import java.util.Arrays;
+
+import utils.ReadableUtils;
+
+//"What if" analysis: for a list of max visual diffs, the savings the optimization would bring on a batch, without writing any file.
+//Each file is searched once for every max visual diff, the qualities measured for one being reused for the others (see QualityCurve).
+public class ThresholdAnalysis {
+	
+	private double[] _maxVisualDiffs;
+	private int[] _nbFiles;
+	private int[] _nbOptimized;
+	private long[] _srcSize;
+	private long[] _resultSize;
+	private long[] _cpuTime;
+	private long _totalTime;
+	
+	public ThresholdAnalysis(double[] maxVisualDiffs) {
+		_maxVisualDiffs = maxVisualDiffs.clone();
+		Arrays.sort(_maxVisualDiffs);
+		_nbFiles = new int[_maxVisualDiffs.length];
+		_nbOptimized = new int[_maxVisualDiffs.length];
+		_srcSize = new long[_maxVisualDiffs.length];
+		_resultSize = new long[_maxVisualDiffs.length];
+		_cpuTime = new long[_maxVisualDiffs.length];
+		_totalTime = 0;
+	}
+	
+	//Parse a list of max visual diffs (in percent) separated by spaces, commas or semicolons, for example "0.5 1 2 5"
+	public static ThresholdAnalysis parse(String maxVisualDiffs) throws NumberFormatException {
+		String[] values = maxVisualDiffs.trim().split("[\\s,;]+");
+		double[] result = new double[values.length];
+		for (int i = 0; i < values.length; ++i) {
+			result[i] = Double.parseDouble(values[i].replace("%", ""));
+		}
+		return new ThresholdAnalysis(result);
+	}
+	
+	//Sorted in ascending order
+	public double[] getMaxVisualDiffs() {
+		return _maxVisualDiffs.clone();
+	}
+	
+	//resultSize: size of the file after optimization (the source size if it would not be optimized)
+	//cpuTime: estimated time of the search for this max visual diff alone, in ms
+	public synchronized void add(int index, int state, long srcSize, long resultSize, long cpuTime) {
+		_nbFiles[index]++;
+		if (state == JPEGFiles.OPTIMIZED_OK) {
+			_nbOptimized[index]++;
+		}
+		_srcSize[index] += srcSize;
+		_resultSize[index] += resultSize;
+		_cpuTime[index] += cpuTime;
+	}
+	
+	//Time really spent by the analysis, for all the max visual diffs at once
+	public synchronized void addTotalTime(long time) {
+		_totalTime += time;
+	}
+	
+	public synchronized String[] getReport() {
+		String[] report = new String[_maxVisualDiffs.length + 1];
+		for (int i = 0; i < _maxVisualDiffs.length; ++i) {
+			long earn = _srcSize[i] - _resultSize[i];
+			double rate = (_srcSize[i] == 0) ? 0 : earn / (double)_srcSize[i];
+			report[i] = "Max diff " + ReadableUtils.rate(_maxVisualDiffs[i] / 100.) + " : " + _nbOptimized[i] + "/" + _nbFiles[i] + " files optimized, " + ReadableUtils.fileSize(_srcSize[i]) + " -> " + ReadableUtils.fileSize(_resultSize[i]) + ". Earn " + ReadableUtils.fileSize(earn) + " (" + ReadableUtils.rate(rate) + "), estimated CPU time " + ReadableUtils.interval(_cpuTime[i]);
+		}
+		report[_maxVisualDiffs.length] = "Analysis CPU time for all max diffs: " + ReadableUtils.interval(_totalTime);
+		return report;
+	}
+	
+}
@@ -15,7 +15,13 @@ public class Exif {
 	private HashMap<String, ExifValue>  _exifDataByTagName;
 	
 	public Exif(File file) throws IOException {
+		this(file, true);
+	}
+	
+	//debug: print every tag found on the standard output
+	public Exif(File file, boolean debug) throws IOException {
 		_file = file;
+		_debug = debug;
 		this.initExifDatas();
 		this.parse();
 	}
@@ -33,6 +39,15 @@ public class Exif {
 		return _exifDataByTagName.get(tagName);
 	}
 	
+	//Value of the tag as a string (without the trailing NUL and spaces), null if the file does not contain it
+	public String getString(String tagName) {
+		ExifValue exifValue = get(tagName);
+		if ((exifValue == null) || (exifValue.getValue() == null)) {
+			return null;
+		}
+		return exifValue.getValue().toString().replace('\0', ' ').trim();
+	}
+	
 	private void initExifDatas() {
 		_exifDataByTagValue =  new HashMap<Integer, ExifValue>();
 		_exifDataByTagName =  new HashMap<String, ExifValue>();
@@ -40,7 +55,7 @@ public class Exif {
 		this.addExifData(0x010e, "ImageDescription", "Describes image.");
 		this.addExifData(0x010f, "Make", "Shows manufacturer of digicam.");
 		this.addExifData(0x0110, "Model", "Shows model number of digicam.");
-		this.addExifData(0x0110, "Orientation", "The orientation of the camera relative to the scene, when the image was captured. The start point of stored data is, '1' means upper left, '3' lower right, '6' upper right, '8' lower left, '9' undefined.");
+		this.addExifData(0x0112, "Orientation", "The orientation of the camera relative to the scene, when the image was captured. The start point of stored data is, '1' means upper left, '3' lower right, '6' upper right, '8' lower left, '9' undefined.");
 		this.addExifData(0x011a, "XResolution", "Display/Print resolution of image. Large number of digicam uses 1/72inch, but it has no mean because personal computer doesn't use this value to display/print out.");
 		this.addExifData(0x011b, "YResolution", "Display/Print resolution of image. Large number of digicam uses 1/72inch, but it has no mean because personal computer doesn't use this value to display/print out.");
 		this.addExifData(0x0128, "ResolutionUnit", "Unit of XResolution(0x011a)/YResolution(0x011b). '1' means no-unit, '2' means inch, '3' means centimeter.");
@@ -623,14 +638,11 @@ public class Exif {
 		} else if (format == 2) {
 			formatType = "ascii strings (length : 1 byte)";
 			String str = "";
-			if (count == 4) {
-				//str += (char)b0 + (char)b1 + (char)b2 + (char)b3;
-			} else if (count == 3) {
-				//str += (char)b0 + (char)b1 + (char)b2;
-			} else if (count == 2) {
-				//str += (char)b0 + (char)b1;
-			} else if (count == 1) {
-				str += (char)b0;
+			if (count <= 4) { //stored in the value bytes themselves
+				int[] bytes = new int[] {b0, b1, b2, b3};
+				for (int i = 0; i < count; ++i) {
+					str += (char)bytes[i];
+				}
 			} else {
 				long position = in.getChannel().position();
 				int offset = decode(b0, b1, b2, b3, isLittleEndian);
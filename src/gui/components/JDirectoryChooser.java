@@ -147,6 +147,16 @@ public class JDirectoryChooser extends JPanel implements ActionListener, Documen
 				return;
 			}
 		}
-		setValidateButtonState(_textField.getText().length() == 0);
+		if (_textField.getText().length() == 0) { //empty is allowed: no directory selected
+			setValidateButtonState(true);
+			if (_selectedDirectory != null) {
+				_selectedDirectory = null;
+				for (JDirectoryChooserListener listener : _listeners) {
+					listener.directoryChoosed(_selectedDirectory, this);
+				}
+			}
+		} else {
+			setValidateButtonState(false);
+		}
 	}
 }
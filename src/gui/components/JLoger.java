@@ -35,25 +35,25 @@ public class JLoger extends JTextPane implements Loger {
 	}
 	
 	@Override
-	public void log(String txt, boolean addCR) {
+	public synchronized void log(String txt, boolean addCR) {
 		appendToPane(this, txt, Color.BLACK);
 		appendCR(addCR);
 	}
 
 	@Override
-	public void warn(String txt, boolean addCR) {
+	public synchronized void warn(String txt, boolean addCR) {
 		appendToPane(this, txt, Color.ORANGE);
 		appendCR(addCR);
 	}
 
 	@Override
-	public void error(String txt, boolean addCR) {
+	public synchronized void error(String txt, boolean addCR) {
 		appendToPane(this, txt, Color.RED);
 		appendCR(addCR);
 	}
 	
 	@Override
-	public void success(String txt, boolean addCR) {
+	public synchronized void success(String txt, boolean addCR) {
 		appendToPane(this, txt, new Color(34, 139, 34));
 		appendCR(addCR);
 	}
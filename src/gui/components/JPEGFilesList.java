@@ -79,6 +79,10 @@ public class JPEGFilesList extends JList<JPEGFiles> implements MouseListener, Mo
 		}
 	}	
 	
+	public int indexOf(JPEGFiles jpegFile) {
+		return _listModel.indexOf(jpegFile);
+	}
+	
 	private void setHoverViewerButton(int index) {
 		if (index != _hoverViewerButtonIndex) {
 			_hoverViewerButtonIndex = index;
@@ -182,9 +186,13 @@ public class JPEGFilesList extends JList<JPEGFiles> implements MouseListener, Mo
 	    			return "<font color='green'>Optimization done. Earn " + ReadableUtils.fileSize(jpgFiles.getEarnSize()) + " (" + ReadableUtils.rate(jpgFiles.getEarnRate()) + ") in " + ReadableUtils.interval(jpgFiles.getElaspedTime()) + ". Jpeg compression quality found is <b>" + jpgFiles.getJpegQualityFound() + "%</b>.</font>";
 	    		}
 	    	} else if (jpgFiles.getState() == JPEGFiles.OPTIMIZED_UNNECESSARY) {
-	    		return "<font color='green'>Optimization unnecessary (src file already too small).</font>";
+	    		return "<font color='green'>Optimization unnecessary (src file already too small or already compressed enough).</font>";
 	    	} else if (jpgFiles.getState() == JPEGFiles.OPTIMIZED_OVERWRITE_NOT_ALLOWED) {
 	    		return "<font color='red'>Destination file already exists and overwrite is not allowed.</font>";    		
+	    	} else if (jpgFiles.getState() == JPEGFiles.ALREADY_OPTIMIZED) {
+	    		return "<font color='green'>Already optimized with the same settings, skipped.</font>";
+	    	} else if (jpgFiles.getState() == JPEGFiles.ANALYZED) {
+	    		return "<font color='gray'>Analyzed in " + ReadableUtils.interval(jpgFiles.getElaspedTime()) + ", see the log for the results.</font>";
 	    	}
 			return "UNKNOWN STATE";
 	    }
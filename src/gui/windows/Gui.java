@@ -24,9 +24,13 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.DefaultListCellRenderer;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -36,14 +40,21 @@ import javax.swing.JPanel;
 import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
+import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
 import javax.swing.border.CompoundBorder;
 import javax.swing.border.EmptyBorder;
 import javax.swing.border.MatteBorder;
 
 import core.JPEGFiles;
+import core.JPEGFilesBatch;
+import core.JPEGFilesBatchListener;
 import core.JPEGFilesListener;
 import core.Loger;
+import core.OptimizationManifest;
+import core.QualityCache;
+import core.QualitySearch;
+import core.ThresholdAnalysis;
 import utils.GuiUtils;
 import utils.ReadableUtils;
 
@@ -52,13 +63,20 @@ public class Gui implements JDirectoryChooserListener, JPEGFilesListener {
 
 	private JDirectoryChooser _srcDir;
 	private JDirectoryChooser _dstDir;
+	private JDirectoryChooser _cacheDir;
 	private JComboBox<Double> _minSize;
 	private JComboBox<Boolean> _overwrite;
 	private JComboBox<Double> _maxVisualDiff;
+	private JComboBox<Integer> _nbThreads;
+	private JComboBox<QualitySearch> _qualitySearch;
+	private JCheckBox _proxySearch;
+	private JCheckBox _sampledDiff;
+	private JCheckBox _curveSidecars;
 	
 	//---------------------------------------------------------
 	
 	private JButton _optimizeButton;
+	private JButton _analyzeButton;
 	private JProgressBar _jprogressBar;
 	private JLoger _loger;
 	
@@ -78,6 +96,8 @@ public class Gui implements JDirectoryChooserListener, JPEGFilesListener {
 		_dstDir = new JDirectoryChooser("Destination:", 75);
 		_srcDir.addDirectoryChooserListner(this);
 		_dstDir.addDirectoryChooserListner(this);
+		_cacheDir = new JDirectoryChooser("Cache:", 75); //optional, may be shared by several computers
+		_cacheDir.setToolTipText("Optional directory where the qualities found are stored, to reuse them for the same pictures");
 		
 		//---------------------------------------------------------
 		
@@ -166,16 +186,91 @@ public class Gui implements JDirectoryChooserListener, JPEGFilesListener {
 		maxVisualDiffPanel.add(maxVisualDiffLabel, BorderLayout.WEST);
 		maxVisualDiffPanel.add(_maxVisualDiff, BorderLayout.CENTER);		
 		
+		//---------------------------------------------------------
+		
+		JLabel nbThreadsLabel = new JLabel(" Threads : ");
+		nbThreadsLabel.setPreferredSize(new Dimension(75, 1));
+		
+		_nbThreads = new JComboBox<Integer>();
+		for (int i = 1; i <= 2 * JPEGFilesBatch.getDefaultNbThreads(); ++i) {
+			_nbThreads.addItem(Integer.valueOf(i));
+		}
+		_nbThreads.setRenderer(new DefaultListCellRenderer() {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+	        public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+	            Component component = super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+	            component.setComponentOrientation(ComponentOrientation.RIGHT_TO_LEFT);
+	            return component;
+	        }
+		});
+		
+		JPanel nbThreadsPanel = new JPanel(new BorderLayout());
+		nbThreadsPanel.add(nbThreadsLabel, BorderLayout.WEST);
+		nbThreadsPanel.add(_nbThreads, BorderLayout.CENTER);
+		
+		//---------------------------------------------------------
+		
+		JLabel qualitySearchLabel = new JLabel(" Search : ");
+		qualitySearchLabel.setPreferredSize(new Dimension(75, 1));
+		
+		_qualitySearch = new JComboBox<QualitySearch>();
+		_qualitySearch.addItem(QualitySearch.INTERPOLATION);
+		_qualitySearch.addItem(QualitySearch.BISECTION);
+		_qualitySearch.setToolTipText("How the qualities to try are picked");
+		_qualitySearch.setRenderer(new DefaultListCellRenderer() {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+	        public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+	            Component component = super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+	            component.setComponentOrientation(ComponentOrientation.RIGHT_TO_LEFT);
+	            return component;
+	        }
+		});
+		
+		JPanel qualitySearchPanel = new JPanel(new BorderLayout());
+		qualitySearchPanel.add(qualitySearchLabel, BorderLayout.WEST);
+		qualitySearchPanel.add(_qualitySearch, BorderLayout.CENTER);
+		
+		//---------------------------------------------------------
+		
+		JLabel optionsLabel = new JLabel(" Options : ");
+		optionsLabel.setPreferredSize(new Dimension(75, 1));
+		
+		_proxySearch = new JCheckBox("Proxy search");
+		_proxySearch.setToolTipText("Search the quality on a downscaled copy of the big pictures, then only confirm it at full resolution");
+		
+		_sampledDiff = new JCheckBox("Sampled diff");
+		_sampledDiff.setToolTipText("Estimate the diff from a sample of the pixels, faster but a picture slightly above the max diff may (rarely) pass");
+		
+		_curveSidecars = new JCheckBox("Curve sidecars");
+		_curveSidecars.setToolTipText("Keep the quality curve measured for each picture in a file next to the optimized one, so a new max diff is found faster");
+		
+		JPanel optionsBoxes = new JPanel(new GridLayout(1, 3));
+		optionsBoxes.add(_proxySearch);
+		optionsBoxes.add(_sampledDiff);
+		optionsBoxes.add(_curveSidecars);
+		
+		JPanel optionsPanel = new JPanel(new BorderLayout());
+		optionsPanel.add(optionsLabel, BorderLayout.WEST);
+		optionsPanel.add(optionsBoxes, BorderLayout.CENTER);
+		
 		
 		//---------------------------------------------------------
 		
 		JPanel srcdstPanel = new JPanel();
-		srcdstPanel.setLayout(new GridLayout(5, 1));
+		srcdstPanel.setLayout(new GridLayout(9, 1));
 		srcdstPanel.add(_srcDir);
 		srcdstPanel.add(_dstDir);
+		srcdstPanel.add(_cacheDir);
 		srcdstPanel.add(minPanel);
 		srcdstPanel.add(overwritePanel);
 		srcdstPanel.add(maxVisualDiffPanel);
+		srcdstPanel.add(nbThreadsPanel);
+		srcdstPanel.add(qualitySearchPanel);
+		srcdstPanel.add(optionsPanel);
 		
 		//---------------------------------------------------------
 		
@@ -188,6 +283,20 @@ public class Gui implements JDirectoryChooserListener, JPEGFilesListener {
 		});
 		_optimizeButton.setEnabled(false);
 		
+		_analyzeButton = new JButton("Analyze");
+		_analyzeButton.setToolTipText("Compute the savings for several max diffs, without writing any file");
+		_analyzeButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				analyze();
+			}
+		});
+		_analyzeButton.setEnabled(false);
+		
+		JPanel buttonsPanel = new JPanel(new GridLayout(2, 1));
+		buttonsPanel.add(_optimizeButton);
+		buttonsPanel.add(_analyzeButton);
+		
 		_jprogressBar = new JProgressBar();
 		_jprogressBar.setValue(0);
 		_jprogressBar.setMaximum(100);
@@ -244,7 +353,7 @@ public class Gui implements JDirectoryChooserListener, JPEGFilesListener {
 		
 		JPanel northPanel = new JPanel(new BorderLayout());
 		northPanel.add(srcdstPanel, BorderLayout.CENTER);
-		northPanel.add(_optimizeButton, BorderLayout.EAST);
+		northPanel.add(buttonsPanel, BorderLayout.EAST);
 		northPanel.add(_jprogressBar, BorderLayout.SOUTH);
 		
 		JPanel contentPanel = new JPanel();
@@ -292,7 +401,24 @@ public class Gui implements JDirectoryChooserListener, JPEGFilesListener {
 	private void optimize() {
 		setOptimizeState(false);
 		writeConfig();
-		new OptimizeThread().start();
+		new OptimizeThread(null).start();
+	}
+	
+	private void analyze() {
+		String maxVisualDiffs = (String) JOptionPane.showInputDialog(_jFrame, "Max diffs to analyze (in %):", "Analyze", JOptionPane.QUESTION_MESSAGE, null, null, "0.5 1 2 5");
+		if (maxVisualDiffs == null) {
+			return ;
+		}
+		ThresholdAnalysis analysis;
+		try {
+			analysis = ThresholdAnalysis.parse(maxVisualDiffs);
+		} catch (NumberFormatException e) {
+			JOptionPane.showMessageDialog(_jFrame, "Wrong max diffs: " + maxVisualDiffs, "Error", JOptionPane.ERROR_MESSAGE);
+			return ;
+		}
+		setOptimizeState(false);
+		writeConfig();
+		new OptimizeThread(analysis).start();
 	}
 	
 	private File getConfigFile() {
@@ -308,6 +434,12 @@ public class Gui implements JDirectoryChooserListener, JPEGFilesListener {
 			writer.write(_minSize.getSelectedIndex() + "\n");
 			writer.write(_overwrite.getSelectedIndex() + "\n");
 			writer.write(_maxVisualDiff.getSelectedIndex() + "\n");
+			writer.write(_nbThreads.getSelectedIndex() + "\n");
+			writer.write((_cacheDir.getSelectedDirectory() == null ? "" : _cacheDir.getSelectedDirectory().getAbsolutePath()) + "\n");
+			writer.write(_qualitySearch.getSelectedIndex() + "\n");
+			writer.write(_proxySearch.isSelected() + "\n");
+			writer.write(_sampledDiff.isSelected() + "\n");
+			writer.write(_curveSidecars.isSelected() + "\n");
 			writer.flush();
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -325,6 +457,7 @@ public class Gui implements JDirectoryChooserListener, JPEGFilesListener {
 			_minSize.setSelectedIndex(10);
 			_overwrite.setSelectedIndex(1);
 			_maxVisualDiff.setSelectedIndex(3);
+			_nbThreads.setSelectedIndex(JPEGFilesBatch.getDefaultNbThreads() - 1);
 			return ;
 		}
 		BufferedReader reader = null;
@@ -335,6 +468,28 @@ public class Gui implements JDirectoryChooserListener, JPEGFilesListener {
 			_minSize.setSelectedIndex(Integer.parseInt(reader.readLine()));
 			_overwrite.setSelectedIndex(Integer.parseInt(reader.readLine()));
 			_maxVisualDiff.setSelectedIndex(Integer.parseInt(reader.readLine()));
+			String nbThreads = reader.readLine(); //missing in ini files written by older versions
+			_nbThreads.setSelectedIndex(nbThreads == null ? JPEGFilesBatch.getDefaultNbThreads() - 1 : Math.min(Integer.parseInt(nbThreads), _nbThreads.getItemCount() - 1));
+			String cacheDir = reader.readLine();
+			if ((cacheDir != null) && (cacheDir.length() > 0)) {
+				_cacheDir.setSelectedDirectory(cacheDir);
+			}
+			String qualitySearch = reader.readLine(); //missing in ini files written by older versions
+			if (qualitySearch != null) {
+				_qualitySearch.setSelectedIndex(Integer.parseInt(qualitySearch));
+			}
+			String proxySearch = reader.readLine(); //missing in ini files written by older versions
+			if (proxySearch != null) {
+				_proxySearch.setSelected(Boolean.parseBoolean(proxySearch));
+			}
+			String sampledDiff = reader.readLine();
+			if (sampledDiff != null) {
+				_sampledDiff.setSelected(Boolean.parseBoolean(sampledDiff));
+			}
+			String curveSidecars = reader.readLine();
+			if (curveSidecars != null) {
+				_curveSidecars.setSelected(Boolean.parseBoolean(curveSidecars));
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		} finally {
@@ -348,10 +503,17 @@ public class Gui implements JDirectoryChooserListener, JPEGFilesListener {
 	private void setOptimizeState(boolean state) {
 		_srcDir.setEnabled(state);
 		_dstDir.setEnabled(state);
+		_cacheDir.setEnabled(state);
 		_minSize.setEnabled(state);
 		_overwrite.setEnabled(state);
 		_maxVisualDiff.setEnabled(state);
+		_nbThreads.setEnabled(state);
+		_qualitySearch.setEnabled(state);
+		_proxySearch.setEnabled(state);
+		_sampledDiff.setEnabled(state);
+		_curveSidecars.setEnabled(state);
 		_optimizeButton.setEnabled(state);
+		_analyzeButton.setEnabled(state);
 	}
 	
 	@Override
@@ -361,17 +523,22 @@ public class Gui implements JDirectoryChooserListener, JPEGFilesListener {
 		}
 		_jList.updateListDstDir(_dstDir.getSelectedDirectory());
 		_optimizeButton.setEnabled((_srcDir.getSelectedDirectory() != null) && (_dstDir.getSelectedDirectory() != null));
+		_analyzeButton.setEnabled(_optimizeButton.isEnabled());
 	}
 	
 	public Loger getLoger() {
 		return _loger;
 	}
 	
-	private long isNull(Long l, long value) {
-		return l == null ? value : l;
-	}
-
-	private class OptimizeThread extends Thread {
+	private class OptimizeThread extends Thread implements JPEGFilesBatchListener {
+		
+		private ThresholdAnalysis _analysis; //null to optimize
+		private AtomicInteger _nbFailures = new AtomicInteger(0);
+		
+		public OptimizeThread(ThresholdAnalysis analysis) {
+			_analysis = analysis;
+		}
+		
 		public void run() {
 			if ((_srcDir.getSelectedDirectory() != null) && (_dstDir.getSelectedDirectory() != null)) {
 				if (_srcDir.getSelectedDirectory().isDirectory() && _dstDir.getSelectedDirectory().isDirectory()) {
@@ -381,38 +548,95 @@ public class Gui implements JDirectoryChooserListener, JPEGFilesListener {
 					//Init
 					_loger.setText("");
 					_jprogressBar.setValue(0);
+					List<JPEGFiles> jpegFiles = new ArrayList<JPEGFiles>();
 					for (int i = 0; i < _jList.getModel().getSize(); ++i) {
 						JPEGFiles jpegFile = _jList.getModel().getElementAt(i);
 						jpegFile.reinitState();
+						jpegFiles.add(jpegFile);
 					}
 					
 					//Do compression
-					long earnSize = 0;
-					for (int i = 0; i < _jList.getModel().getSize(); ++i) {
-						_jprogressBar.setValue((i*100)/_jList.getModel().getSize());
-						JPEGFiles jpegFile = _jList.getModel().getElementAt(i);
-						_jList.setSelectedIndex(i);
-						_jList.ensureIndexIsVisible(i);
-						if (jpegFile.getSrc() != null) {
-							try {
-								jpegFile.optimize(_dstDir.getSelectedDirectory(), (Double)_maxVisualDiff.getSelectedItem(), minSize, overwriteDst);
-								earnSize += isNull(jpegFile.getEarnSize(), 0);
-							} catch (IOException e) {
-								e.printStackTrace();
-								JOptionPane.showMessageDialog(_jFrame, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
-							}
-							_jList.repaint();
+					JPEGFilesBatch batch = new JPEGFilesBatch(jpegFiles, _dstDir.getSelectedDirectory(), (Double)_maxVisualDiff.getSelectedItem(), minSize, overwriteDst);
+					batch.setNbThreads((Integer)_nbThreads.getSelectedItem());
+					batch.setQualitySearch((QualitySearch)_qualitySearch.getSelectedItem());
+					batch.setProxySearch(_proxySearch.isSelected());
+					batch.setSampledDiff(_sampledDiff.isSelected());
+					batch.setCurveSidecars(_curveSidecars.isSelected());
+					batch.setParallelProbes(jpegFiles.size() < batch.getNbThreads()); //spare cores from the start: each file is done sooner with several probes at the same time
+					batch.setListener(this);
+					if (_cacheDir.getSelectedDirectory() != null) {
+						batch.setQualityCache(new QualityCache(_cacheDir.getSelectedDirectory()));
+					}
+					if (_analysis != null) {
+						batch.setAnalysis(_analysis);
+					} else {
+						batch.setPipelined(true);
+						OptimizationManifest manifest = new OptimizationManifest(_srcDir.getSelectedDirectory(), _dstDir.getSelectedDirectory());
+						try {
+							manifest.load();
+							batch.setManifest(manifest);
+						} catch (IOException e) {
+							e.printStackTrace();
+							_loger.warn("Unable to read " + manifest.getFile().getAbsolutePath() + " (" + e.getMessage() + "), every file will be optimized.", true);
 						}
 					}
+					try {
+						batch.run();
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					} catch (IOException e) {
+						e.printStackTrace();
+						showMessage(e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+					}
 					
 					//End
 					_jprogressBar.setValue(100);
-					JOptionPane.showMessageDialog(_jFrame, "Optmization done. Earn " + ReadableUtils.fileSize(earnSize) + "!", "Done", JOptionPane.INFORMATION_MESSAGE);
+					String failures = (_nbFailures.get() > 0) ? "\n" + _nbFailures.get() + " file(s) failed, see the log." : "";
+					int messageType = (_nbFailures.get() > 0) ? JOptionPane.WARNING_MESSAGE : JOptionPane.INFORMATION_MESSAGE;
+					if (_analysis != null) {
+						StringBuilder report = new StringBuilder();
+						for (String line : _analysis.getReport()) {
+							_loger.success(line, true);
+							report.append(line).append("\n");
+						}
+						showMessage(report.toString() + failures, "Analysis done", messageType);
+					} else {
+						showMessage("Optmization done. Earn " + ReadableUtils.fileSize(batch.getEarnSize()) + "!" + failures, "Done", messageType);
+					}
 					
 				}
 			}
 			setOptimizeState(true);
 		}
+		
+		@Override
+		public void fileStarted(JPEGFiles jpegFile) {
+			int i = _jList.indexOf(jpegFile);
+			_jList.setSelectedIndex(i);
+			_jList.ensureIndexIsVisible(i);
+		}
+		
+		@Override
+		public void fileDone(JPEGFiles jpegFile, int nbFilesDone, int nbFiles) {
+			_jprogressBar.setValue((nbFilesDone*100)/nbFiles);
+			_jList.repaint();
+		}
+		
+		//Called by the workers: the failure is only logged, the workers do not wait for the user (see the summary at the end of the batch)
+		@Override
+		public void fileFailed(JPEGFiles jpegFile, Exception e) {
+			_nbFailures.incrementAndGet();
+			_loger.error("Unable to process " + jpegFile.getSrc().getAbsolutePath() + ": " + e.getMessage(), true);
+		}
+		
+		private void showMessage(final String message, final String title, final int messageType) {
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					JOptionPane.showMessageDialog(_jFrame, message, title, messageType);
+				}
+			});
+		}
 	}
 	
 	//-- Gui Interface --------------------------------------------------------
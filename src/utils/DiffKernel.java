@@ -0,0 +1,268 @@
+package utils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+
+//Visual diff between two images of the same size, specialized per raster layout.
+//The kernel is picked once per couple of images (see select) and reads directly the backing arrays of the rasters when it can.
+//There is no Vector API (jdk.incubator.vector) kernel: it needs Java 16 or later with an incubator module added at launch, while these sources target older JVM,
+//and a SIMD-friendly layout of this loop was not faster than RGB3ByteKernel when measured.
+public abstract class DiffKernel {
+	
+	//SQRT[d] = sqrt(d), for every possible squared RGB distance d (3 * 255^2 max)
+	private static final double[] SQRT = new double[3 * 255 * 255 + 1];
+	static {
+		for (int i = 0; i < SQRT.length; ++i) {
+			SQRT[i] = Math.sqrt(i);
+		}
+	}
+	
+	protected final int _width;
+	protected final int _height;
+	
+	protected DiffKernel(int width, int height) {
+		_width = width;
+		_height = height;
+	}
+	
+	public int getWidth() {
+		return _width;
+	}
+	
+	public int getHeight() {
+		return _height;
+	}
+	
+	//Sum of the pixel differences in the rectangle [x0, x1[ x [y0, y1[ (each pixel difference is between 0 and getMaxPixelDiff())
+	public abstract double sum(int x0, int y0, int x1, int y1);
+	
+	public abstract double getMaxPixelDiff();
+	
+	public double sum(int y0, int y1) {
+		return sum(0, y0, _width, y1);
+	}
+	
+	//Convert a sum of pixel differences into a rate between 0 and 1
+	public double normalize(double sum, long nbPixels) {
+		return nbPixels == 0 ? 0 : sum / (nbPixels * getMaxPixelDiff());
+	}
+	
+	public static DiffKernel select(BufferedImage img1, BufferedImage img2) throws IOException {
+		int width = img1.getWidth();
+		int height = img1.getHeight();
+		if ((width != img2.getWidth()) || (height != img2.getHeight())) {
+			throw new IOException("Images have different sizes");
+		}
+		
+		if (img1.getType() == img2.getType()) {
+			Raster raster1 = img1.getRaster();
+			Raster raster2 = img2.getRaster();
+			switch (img1.getType()) {
+				case BufferedImage.TYPE_3BYTE_BGR:
+					if (isByteInterleaved(raster1, 3) && isByteInterleaved(raster2, 3)) {
+						return new RGB3ByteKernel(width, height, bytes(raster1), bytes(raster2));
+					}
+					break;
+				case BufferedImage.TYPE_INT_RGB:
+					if (isIntPacked(raster1) && isIntPacked(raster2)) {
+						return new IntRGBKernel(width, height, ints(raster1), ints(raster2));
+					}
+					break;
+				case BufferedImage.TYPE_BYTE_GRAY:
+					if (isByteInterleaved(raster1, 1) && isByteInterleaved(raster2, 1)) {
+						return new ByteGrayKernel(width, height, bytes(raster1), bytes(raster2));
+					}
+					break;
+			}
+		}
+		return new GenericKernel(img1, img2);
+	}
+	
+	//-------------------------------------------------------------------------
+	//-- Raster layout checks: the direct kernels expect a whole raster, one pixel after the other, without padding
+	//-------------------------------------------------------------------------
+	
+	private static boolean isWholeRaster(Raster raster) {
+		return (raster.getParent() == null) && (raster.getSampleModelTranslateX() == 0) && (raster.getSampleModelTranslateY() == 0) && (raster.getDataBuffer().getNumBanks() == 1) && (raster.getDataBuffer().getOffset() == 0);
+	}
+	
+	private static boolean isByteInterleaved(Raster raster, int nbChannels) {
+		SampleModel sm = raster.getSampleModel();
+		if ((isWholeRaster(raster) == false) || (raster.getDataBuffer() instanceof DataBufferByte == false) || (sm instanceof ComponentSampleModel == false)) {
+			return false;
+		}
+		ComponentSampleModel csm = (ComponentSampleModel) sm;
+		return (csm.getNumBands() == nbChannels) && (csm.getPixelStride() == nbChannels) && (csm.getScanlineStride() == raster.getWidth() * nbChannels);
+	}
+	
+	private static boolean isIntPacked(Raster raster) {
+		SampleModel sm = raster.getSampleModel();
+		if ((isWholeRaster(raster) == false) || (raster.getDataBuffer() instanceof DataBufferInt == false) || (sm instanceof SinglePixelPackedSampleModel == false)) {
+			return false;
+		}
+		return ((SinglePixelPackedSampleModel) sm).getScanlineStride() == raster.getWidth();
+	}
+	
+	private static byte[] bytes(Raster raster) {
+		return ((DataBufferByte) raster.getDataBuffer()).getData();
+	}
+	
+	private static int[] ints(Raster raster) {
+		return ((DataBufferInt) raster.getDataBuffer()).getData();
+	}
+	
+	//-------------------------------------------------------------------------
+	//-- Kernels
+	//-------------------------------------------------------------------------
+	
+	//TYPE_3BYTE_BGR: 3 bytes per pixel (channels order does not matter, both images have the same layout)
+	private static class RGB3ByteKernel extends DiffKernel {
+		private final byte[] _data1;
+		private final byte[] _data2;
+		
+		public RGB3ByteKernel(int width, int height, byte[] data1, byte[] data2) {
+			super(width, height);
+			_data1 = data1;
+			_data2 = data2;
+		}
+		
+		@Override
+		public double sum(int x0, int y0, int x1, int y1) {
+			final byte[] data1 = _data1;
+			final byte[] data2 = _data2;
+			double diff = 0;
+			for (int y = y0; y < y1; ++y) {
+				int end = (y * _width + x1) * 3;
+				for (int i = (y * _width + x0) * 3; i < end; i += 3) {
+					int d0 = (data2[i] & 0xFF) - (data1[i] & 0xFF);
+					int d1 = (data2[i+1] & 0xFF) - (data1[i+1] & 0xFF);
+					int d2 = (data2[i+2] & 0xFF) - (data1[i+2] & 0xFF);
+					diff += SQRT[(d0*d0) + (d1*d1) + (d2*d2)];
+				}
+			}
+			return diff;
+		}
+		
+		@Override
+		public double getMaxPixelDiff() {
+			return 255. * Math.sqrt(3);
+		}
+	}
+	
+	//TYPE_INT_RGB: 1 int per pixel, 0x00RRGGBB
+	private static class IntRGBKernel extends DiffKernel {
+		private final int[] _data1;
+		private final int[] _data2;
+		
+		public IntRGBKernel(int width, int height, int[] data1, int[] data2) {
+			super(width, height);
+			_data1 = data1;
+			_data2 = data2;
+		}
+		
+		@Override
+		public double sum(int x0, int y0, int x1, int y1) {
+			final int[] data1 = _data1;
+			final int[] data2 = _data2;
+			double diff = 0;
+			for (int y = y0; y < y1; ++y) {
+				int end = y * _width + x1;
+				for (int i = y * _width + x0; i < end; ++i) {
+					int rgb1 = data1[i];
+					int rgb2 = data2[i];
+					int dR = ((rgb2 >> 16) & 0xFF) - ((rgb1 >> 16) & 0xFF);
+					int dG = ((rgb2 >>  8) & 0xFF) - ((rgb1 >>  8) & 0xFF);
+					int dB = ((rgb2      ) & 0xFF) - ((rgb1      ) & 0xFF);
+					diff += SQRT[(dR*dR) + (dG*dG) + (dB*dB)];
+				}
+			}
+			return diff;
+		}
+		
+		@Override
+		public double getMaxPixelDiff() {
+			return 255. * Math.sqrt(3);
+		}
+	}
+	
+	//TYPE_BYTE_GRAY: 1 byte per pixel
+	private static class ByteGrayKernel extends DiffKernel {
+		private final byte[] _data1;
+		private final byte[] _data2;
+		
+		public ByteGrayKernel(int width, int height, byte[] data1, byte[] data2) {
+			super(width, height);
+			_data1 = data1;
+			_data2 = data2;
+		}
+		
+		@Override
+		public double sum(int x0, int y0, int x1, int y1) {
+			final byte[] data1 = _data1;
+			final byte[] data2 = _data2;
+			long diff = 0; //integer sum, no rounding at all
+			for (int y = y0; y < y1; ++y) {
+				int end = y * _width + x1;
+				for (int i = y * _width + x0; i < end; ++i) {
+					int d = (data2[i] & 0xFF) - (data1[i] & 0xFF);
+					diff += (d < 0) ? -d : d;
+				}
+			}
+			return diff;
+		}
+		
+		@Override
+		public double getMaxPixelDiff() {
+			return 255.;
+		}
+	}
+	
+	//Any other layout (or two images with different layouts): go through getRGB, one row at a time
+	private static class GenericKernel extends DiffKernel {
+		private final BufferedImage _img1;
+		private final BufferedImage _img2;
+		
+		public GenericKernel(BufferedImage img1, BufferedImage img2) {
+			super(img1.getWidth(), img1.getHeight());
+			_img1 = img1;
+			_img2 = img2;
+		}
+		
+		@Override
+		public double sum(int x0, int y0, int x1, int y1) {
+			int w = x1 - x0;
+			if (w <= 0) {
+				return 0;
+			}
+			int[] row1 = new int[w];
+			int[] row2 = new int[w];
+			double diff = 0;
+			for (int y = y0; y < y1; ++y) {
+				_img1.getRGB(x0, y, w, 1, row1, 0, w);
+				_img2.getRGB(x0, y, w, 1, row2, 0, w);
+				for (int i = 0; i < w; ++i) {
+					int rgb1 = row1[i];
+					int rgb2 = row2[i];
+					int dR = ((rgb2 >> 16) & 0xFF) - ((rgb1 >> 16) & 0xFF);
+					int dG = ((rgb2 >>  8) & 0xFF) - ((rgb1 >>  8) & 0xFF);
+					int dB = ((rgb2      ) & 0xFF) - ((rgb1      ) & 0xFF);
+					diff += SQRT[(dR*dR) + (dG*dG) + (dB*dB)];
+				}
+			}
+			return diff;
+		}
+		
+		@Override
+		public double getMaxPixelDiff() {
+			return 255. * Math.sqrt(3);
+		}
+	}
+	
+}
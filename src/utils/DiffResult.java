@@ -0,0 +1,65 @@
+package utils;
+
+//Result of a visual diff computed against a maximum allowed diff (see ImageUtils.computeSimilarityRGB(img1, img2, maxDiff, pool))
+public class DiffResult {
+	
+	private double _diff;
+	private double _lowerBound;
+	private double _upperBound;
+	private boolean _rejectedEarly;
+	private boolean _sampled;
+	private double _scannedFraction;
+	
+	public DiffResult(double diff, boolean rejectedEarly, double scannedFraction) {
+		_diff = diff;
+		_lowerBound = diff;
+		_upperBound = rejectedEarly ? 1. : diff;
+		_rejectedEarly = rejectedEarly;
+		_sampled = false;
+		_scannedFraction = scannedFraction;
+	}
+	
+	//Diff estimated from a sample of the pixels, with its confidence interval (see ImageUtils.computeSimilarityRGB_Sampled)
+	public DiffResult(double diff, double lowerBound, double upperBound, double scannedFraction) {
+		_diff = diff;
+		_lowerBound = lowerBound;
+		_upperBound = upperBound;
+		_rejectedEarly = false;
+		_sampled = true;
+		_scannedFraction = scannedFraction;
+	}
+	
+	//Visual diff rate (between 0 and 1). When rejected early, it's only the diff of the scanned part: the real diff is greater or equal.
+	//When sampled, it's the estimated diff.
+	public double getDiff() {
+		return _diff;
+	}
+	
+	public double getLowerBound() {
+		return _lowerBound;
+	}
+	
+	public double getUpperBound() {
+		return _upperBound;
+	}
+	
+	//True if the scan stopped as soon as the diff was proven greater than the maximum allowed diff
+	public boolean isRejectedEarly() {
+		return _rejectedEarly;
+	}
+	
+	//True if the diff is only estimated from a sample of the pixels: the bounds are a confidence interval, not a proof
+	public boolean isSampled() {
+		return _sampled;
+	}
+	
+	//Fraction of the pixels scanned (between 0 and 1)
+	public double getScannedFraction() {
+		return _scannedFraction;
+	}
+	
+	public boolean isLowerThan(double maxDiff) {
+		return getUpperBound() < maxDiff;
+	}
+	
+}
@@ -1,13 +1,19 @@
 package utils;
 
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class FileUtils {
-
+	
 	public static void copyFile(File source, File dest) throws IOException {
 		FileInputStream fis = null;
 		FileOutputStream fos = null;
@@ -38,4 +44,55 @@ public class FileUtils {
 		}
 	}
 	
+	//Fast content hash (hex SHA-1): only the file size and 3 samples of 64kB (start, middle and end) are hashed,
+	//so it costs a few reads whatever the file size. Enough to recognize the same picture, not meant for security.
+	public static String sampledHash(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return sampledHash(raf, raf.length());
+		} finally {
+			raf.close();
+		}
+	}
+	
+	//Same hash, of a file already read in memory
+	public static String sampledHash(ReusableByteArrayOutputStream data) throws IOException {
+		return sampledHash(new DataInputStream(data.toInputStream()), data.size());
+	}
+	
+	private static String sampledHash(DataInput in, long length) throws IOException {
+		final int sampleSize = 64 * 1024;
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage());
+		}
+		
+		digest.update(Long.toString(length).getBytes("US-ASCII"));
+		byte[] buffer = new byte[sampleSize];
+		long[] offsets = (length <= 3 * sampleSize) ? new long[] {0} : new long[] {0, (length - sampleSize) / 2, length - sampleSize};
+		long position = 0;
+		for (long offset : offsets) { //by increasing offset: only skips forward
+			while (position < offset) {
+				int skipped = in.skipBytes((int)Math.min(offset - position, Integer.MAX_VALUE));
+				if (skipped <= 0) {
+					throw new EOFException();
+				}
+				position += skipped;
+			}
+			int toRead = (int)Math.min(length <= 3 * sampleSize ? length : sampleSize, Integer.MAX_VALUE);
+			byte[] sample = (toRead > buffer.length) ? new byte[toRead] : buffer;
+			in.readFully(sample, 0, toRead);
+			digest.update(sample, 0, toRead);
+			position += toRead;
+		}
+		
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b & 0xFF));
+		}
+		return hex.toString();
+	}
+	
 }
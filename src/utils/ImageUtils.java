@@ -7,23 +7,140 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.stream.FileImageOutputStream;
 import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 public class ImageUtils {
 
+	//Serial: see computeSimilarityRGB_Parallel to use several cores
 	public static double computeSimilarityRGB(BufferedImage img1, BufferedImage img2) throws IOException {
-		return computeSimilarityRGB_Fastest(img1, img2);
+		return computeSimilarityRGB_Kernel(img1, img2);
 	}
 	
+	//Same as computeSimilarityRGB, but stops as soon as the diff is proven greater or equal to maxDiff (rate between 0 and 1):
+	//as every pixel adds a positive difference, once the running sum exceeds the budget of the whole image, the rest can not make it pass.
+	//Each chunk of rows is computed on pool when it is not null, with the same result as without it (see computeSimilarityRGB_Parallel).
+	public static DiffResult computeSimilarityRGB(BufferedImage img1, BufferedImage img2, double maxDiff, ForkJoinPool pool) throws IOException {
+		DiffKernel kernel = DiffKernel.select(img1, img2);
+		int width = kernel.getWidth();
+		int height = kernel.getHeight();
+		long nbPixels = width * (long)height;
+		
+		//Check the budget after each chunk of rows. The chunks are made of whole bands and do not depend on pool, so the result does not either;
+		//at least 1/16 of the image, so a chunk has enough bands to keep the pool busy.
+		int chunkHeight = Math.max(EARLY_ABORT_CHUNK_PIXELS / Math.max(1, width), (height + 15) / 16);
+		chunkHeight = Math.max(1, (chunkHeight + PARALLEL_BAND_HEIGHT - 1) / PARALLEL_BAND_HEIGHT) * PARALLEL_BAND_HEIGHT;
+		double budget = maxDiff * nbPixels * kernel.getMaxPixelDiff();
+		
+		double diff = 0;
+		int y = 0;
+		while (y < height) {
+			int toRow = Math.min(height, y + chunkHeight);
+			diff += (pool != null) ? pool.invoke(new SimilarityBandTask(kernel, y, toRow)) : sumBands(kernel, y, toRow);
+			y = toRow;
+			if ((diff >= budget) && (y < height)) {
+				return new DiffResult(kernel.normalize(diff, nbPixels), true, y / (double)height);
+			}
+		}
+		return new DiffResult(kernel.normalize(diff, nbPixels), false, 1.);
+	}
+	
+	private static final int EARLY_ABORT_CHUNK_PIXELS = 256 * 1024;
+	
+	//Same as computeSimilarityRGB(img1, img2, maxDiff, pool), but the diff is first estimated on random 8x8 blocks, stratified on a grid of the image,
+	//with a confidence interval (mean +/- SAMPLED_Z standard errors). While the interval contains maxDiff, the number of blocks per stratum is doubled,
+	//and once SAMPLED_MAX_FRACTION of the image is sampled without a decision, the whole image is scanned.
+	//Most candidates are far from maxDiff, and are decided from a small fraction of the pixels.
+	//The blocks are the same for every candidate of an image (fixed seed), so results are reproducible.
+	//The whole image is scanned on pool when it is not null.
+	public static DiffResult computeSimilarityRGB_Sampled(BufferedImage img1, BufferedImage img2, double maxDiff, ForkJoinPool pool) throws IOException {
+		DiffKernel kernel = DiffKernel.select(img1, img2);
+		int nbBlocksX = kernel.getWidth() / SAMPLED_BLOCK_SIZE;
+		int nbBlocksY = kernel.getHeight() / SAMPLED_BLOCK_SIZE;
+		long nbPixels = kernel.getWidth() * (long)kernel.getHeight();
+		if ((nbPixels < SAMPLED_MIN_PIXELS) || (nbBlocksX < SAMPLED_STRATA) || (nbBlocksY < SAMPLED_STRATA)) {
+			return computeSimilarityRGB(img1, img2, maxDiff, pool);
+		}
+		
+		int nbStrata = SAMPLED_STRATA * SAMPLED_STRATA;
+		double[] sums = new double[nbStrata]; //of the block diffs, per stratum
+		double[] squareSums = new double[nbStrata];
+		double[] weights = new double[nbStrata]; //part of the image covered by the stratum
+		for (int s = 0; s < nbStrata; ++s) {
+			weights[s] = stratumSize(s % SAMPLED_STRATA, nbBlocksX) * (double)stratumSize(s / SAMPLED_STRATA, nbBlocksY) / (nbBlocksX * (double)nbBlocksY);
+		}
+		
+		Random random = new Random(SAMPLED_SEED);
+		int nbSamplesPerStratum = 0;
+		int newSamplesPerStratum = SAMPLED_FIRST_BLOCKS;
+		while (nbSamplesPerStratum * (long)nbStrata * SAMPLED_BLOCK_SIZE * SAMPLED_BLOCK_SIZE < nbPixels * SAMPLED_MAX_FRACTION) {
+			for (int s = 0; s < nbStrata; ++s) {
+				int fromBlockX = stratumStart(s % SAMPLED_STRATA, nbBlocksX);
+				int fromBlockY = stratumStart(s / SAMPLED_STRATA, nbBlocksY);
+				int sizeX = stratumSize(s % SAMPLED_STRATA, nbBlocksX);
+				int sizeY = stratumSize(s / SAMPLED_STRATA, nbBlocksY);
+				for (int i = 0; i < newSamplesPerStratum; ++i) {
+					int x = (fromBlockX + random.nextInt(sizeX)) * SAMPLED_BLOCK_SIZE;
+					int y = (fromBlockY + random.nextInt(sizeY)) * SAMPLED_BLOCK_SIZE;
+					double diff = kernel.normalize(kernel.sum(x, y, x + SAMPLED_BLOCK_SIZE, y + SAMPLED_BLOCK_SIZE), SAMPLED_BLOCK_SIZE * SAMPLED_BLOCK_SIZE);
+					sums[s] += diff;
+					squareSums[s] += diff * diff;
+				}
+			}
+			nbSamplesPerStratum += newSamplesPerStratum;
+			newSamplesPerStratum = nbSamplesPerStratum;
+			
+			//Stratified estimate of the mean, and of its variance
+			double mean = 0;
+			double variance = 0;
+			for (int s = 0; s < nbStrata; ++s) {
+				double stratumMean = sums[s] / nbSamplesPerStratum;
+				double stratumVariance = Math.max(0, (squareSums[s] - nbSamplesPerStratum * stratumMean * stratumMean) / (nbSamplesPerStratum - 1));
+				mean += weights[s] * stratumMean;
+				variance += weights[s] * weights[s] * stratumVariance / nbSamplesPerStratum;
+			}
+			double margin = SAMPLED_Z * Math.sqrt(variance);
+			if ((mean + margin < maxDiff) || (mean - margin >= maxDiff)) {
+				double scannedFraction = nbSamplesPerStratum * (double)nbStrata * SAMPLED_BLOCK_SIZE * SAMPLED_BLOCK_SIZE / nbPixels;
+				return new DiffResult(mean, Math.max(0, mean - margin), Math.min(1, mean + margin), scannedFraction);
+			}
+		}
+		return computeSimilarityRGB(img1, img2, maxDiff, pool);
+	}
+	
+	//First block of the stratum i, when nbBlocks are split into SAMPLED_STRATA strata
+	private static int stratumStart(int i, int nbBlocks) {
+		return (int)(i * (long)nbBlocks / SAMPLED_STRATA);
+	}
+	
+	private static int stratumSize(int i, int nbBlocks) {
+		return stratumStart(i + 1, nbBlocks) - stratumStart(i, nbBlocks);
+	}
+	
+	private static final int SAMPLED_BLOCK_SIZE = 8; //same as the jpeg blocks
+	private static final int SAMPLED_STRATA = 16; //per side: 256 strata
+	private static final int SAMPLED_FIRST_BLOCKS = 2; //per stratum, at least 2 to estimate the variance
+	private static final double SAMPLED_MAX_FRACTION = 0.125; //above, scanning the whole image is not much slower
+	private static final double SAMPLED_Z = 3.; //width of the confidence interval in standard errors (99.7% for a normal distribution)
+	private static final int SAMPLED_MIN_PIXELS = 1000 * 1000; //under this size, the early abort scan is fast enough
+	private static final long SAMPLED_SEED = 0x8F1BBCDCL;
+	
 	//Naive approach
 	//Example image : 7.4 seconds to process
 	public static double computeSimilarityRGB_Slow(BufferedImage img1, BufferedImage img2) throws IOException {
@@ -153,7 +270,7 @@ public class ImageUtils {
 	    } else if (size ==  (width1 * height1)) { // Gray 8bit per pixel - Don't know if it's possible in jpeg, but just in case, code it! :)
 	    	
 		    for (int i = 0; i < size; ++i) {
-				diff += (db2.getElem(i) - db1.getElem(i)) / 255;
+				diff += Math.abs(db2.getElem(i) - db1.getElem(i)) / 255.;
 		    }
 		    p = diff / size;
 	    }
@@ -162,47 +279,222 @@ public class ImageUtils {
 	    return p;
 	}	
 	
+	//Direct array access : the kernel specialized for the raster layout of the images is picked once (see DiffKernel),
+	//then reads the backing byte[]/int[] arrays without any virtual call nor allocation, and uses a lookup table instead of Math.sqrt
+	public static double computeSimilarityRGB_Kernel(BufferedImage img1, BufferedImage img2) throws IOException {
+		DiffKernel kernel = DiffKernel.select(img1, img2);
+		return kernel.normalize(sumBands(kernel, 0, kernel.getHeight()), kernel.getWidth() * (long)kernel.getHeight());
+	}
+	
+	//Parallel version of computeSimilarityRGB_Kernel: the bands of rows are computed on pool, which is given by the caller so it decides how many cores the diff may use.
+	//Partial sums are reduced in the same order as sumBands, so the result is bit-identical to the serial version, whatever the number of cores.
+	public static double computeSimilarityRGB_Parallel(BufferedImage img1, BufferedImage img2, ForkJoinPool pool) throws IOException {
+		DiffKernel kernel = DiffKernel.select(img1, img2);
+		double diff = pool.invoke(new SimilarityBandTask(kernel, 0, kernel.getHeight()));
+		return kernel.normalize(diff, kernel.getWidth() * (long)kernel.getHeight());
+	}
+	
+	public static final int PARALLEL_MIN_PIXELS = 4 * 1000 * 1000; //under this size, the serial version is fast enough
+	private static final int PARALLEL_BAND_HEIGHT = 64; //rows per band
+	
+	//Sum of the rows [fromRow, toRow[, split in halves of whole bands down to a single band: SimilarityBandTask splits and adds in the same order
+	private static double sumBands(DiffKernel kernel, int fromRow, int toRow) {
+		int nbBands = (toRow - fromRow + PARALLEL_BAND_HEIGHT - 1) / PARALLEL_BAND_HEIGHT;
+		if (nbBands <= 1) {
+			return kernel.sum(fromRow, toRow);
+		}
+		int middleRow = fromRow + (nbBands / 2) * PARALLEL_BAND_HEIGHT;
+		double topDiff = sumBands(kernel, fromRow, middleRow);
+		return topDiff + sumBands(kernel, middleRow, toRow);
+	}
+	
+	private static class SimilarityBandTask extends RecursiveTask<Double> {
+		private static final long serialVersionUID = 1L;
+		
+		private DiffKernel _kernel;
+		private int _fromRow;
+		private int _toRow;
+		
+		public SimilarityBandTask(DiffKernel kernel, int fromRow, int toRow) {
+			_kernel = kernel;
+			_fromRow = fromRow;
+			_toRow = toRow;
+		}
+		
+		@Override
+		protected Double compute() {
+			int nbBands = (_toRow - _fromRow + PARALLEL_BAND_HEIGHT - 1) / PARALLEL_BAND_HEIGHT;
+			if (nbBands <= 1) {
+				return _kernel.sum(_fromRow, _toRow);
+			}
+			int middleRow = _fromRow + (nbBands / 2) * PARALLEL_BAND_HEIGHT;
+			SimilarityBandTask top = new SimilarityBandTask(_kernel, _fromRow, middleRow);
+			SimilarityBandTask bottom = new SimilarityBandTask(_kernel, middleRow, _toRow);
+			bottom.fork();
+			double topDiff = top.compute();
+			return topDiff + bottom.join();
+		}
+	}
+	
 	//JPEG Copy input image to output image with the new quality, and copy too the EXIF data from input to output!
 	public static void createJPEG(File input, File output, int quality) throws IOException {
+		createJPEG(readJPEGWithMetadata(input), output, quality);
+	}
+	
+	//Same as above, but from an already decoded image (with its metadata, see readJPEGWithMetadata)
+	public static void createJPEG(IIOImage input, File output, int quality) throws IOException {
 		FileUtils.truncateFile(output);
 		
-		ImageInputStream iis = ImageIO.createImageInputStream(input);
-		Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
-		ImageReader reader = (ImageReader) readers.next();
-		reader.setInput(iis, false);
-		IIOMetadata metadata = reader.getImageMetadata(0);
-		BufferedImage bi = reader.read(0);
-		
-		final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
-		writer.setOutput(new FileImageOutputStream(output));
+		ImageOutputStream ios = new FileImageOutputStream(output);
+		try {
+			createJPEG(input, ios, quality);
+		} finally {
+			ios.close();
+		}
 		
-		ImageWriteParam iwParam = writer.getDefaultWriteParam();
-		iwParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-		iwParam.setCompressionQuality(quality/100f);
+		writeQualityInJPEG(output, quality);
+	}
+	
+	//Same as above, but the result is kept in memory: the output buffer is reset first, so it can be reused from one call to another
+	public static void createJPEG(IIOImage input, ReusableByteArrayOutputStream output, int quality) throws IOException {
+		output.reset();
 		
-		writer.write(null, new IIOImage(bi, null, metadata), iwParam);
-		writer.dispose();
+		ImageOutputStream ios = new MemoryCacheImageOutputStream(output);
+		try {
+			createJPEG(input, ios, quality);
+		} finally {
+			ios.close();
+		}
 		
-		reader.dispose();
+		output.write(quality & 0x7F); //same quality trick as writeQualityInJPEG
+	}
+	
+	private static void createJPEG(IIOImage input, ImageOutputStream output, int quality) throws IOException {
+		ImageWriter writer = getJPEGWriter();
+		try {
+			writer.setOutput(output);
+			
+			ImageWriteParam iwParam = writer.getDefaultWriteParam();
+			iwParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			iwParam.setCompressionQuality(quality/100f);
+			
+			writer.write(null, input, iwParam);
+		} finally {
+			writer.reset();
+		}
+	}
+	
+	//Decode a jpeg file and keep its metadata (EXIF...), so it can be re-encoded several times without decoding it again
+	public static IIOImage readJPEGWithMetadata(File input) throws IOException {
+		ImageInputStream iis = ImageIO.createImageInputStream(input);
+		if (iis == null) {
+			throw new IOException("Unable to read " + input.getAbsolutePath());
+		}
+		return readJPEGWithMetadata(iis);
+	}
+	
+	//Same as above, from a file already read in memory
+	public static IIOImage readJPEGWithMetadata(ReusableByteArrayOutputStream input) throws IOException {
+		return readJPEGWithMetadata(new MemoryCacheImageInputStream(input.toInputStream()));
+	}
+	
+	//iis is closed
+	private static IIOImage readJPEGWithMetadata(ImageInputStream iis) throws IOException {
+		try {
+			ImageReader reader = getReader(iis);
+			try {
+				reader.setInput(iis, false);
+				IIOMetadata metadata = reader.getImageMetadata(0);
+				BufferedImage bi = reader.read(0);
+				return new IIOImage(bi, null, metadata);
+			} finally {
+				releaseReader(reader);
+			}
+		} finally {
+			iis.close();
+		}
+	}
+	
+	//Decode a jpeg previously created in memory
+	public static BufferedImage readJPEG(ReusableByteArrayOutputStream input) throws IOException {
+		return readJPEG(input, null);
+	}
+	
+	//Same as above, but the pixels are decoded into destination when it has the size and the type of the decoded image (else a new image is allocated and returned):
+	//the caller can keep the returned image and give it back for the next candidate, so no full size image is allocated per candidate.
+	//The stream is cached in memory, not in a temporary file as ImageIO.read does.
+	public static BufferedImage readJPEG(ReusableByteArrayOutputStream input, BufferedImage destination) throws IOException {
+		ImageInputStream iis = new MemoryCacheImageInputStream(input.toInputStream());
+		try {
+			ImageReader reader = getReader(iis);
+			try {
+				reader.setInput(iis, true, true);
+				ImageReadParam param = reader.getDefaultReadParam();
+				if ((destination != null) && (destination.getWidth() == reader.getWidth(0)) && (destination.getHeight() == reader.getHeight(0)) && (reader.getImageTypes(0).next().getBufferedImageType() == destination.getType())) {
+					param.setDestination(destination);
+				}
+				return reader.read(0, param);
+			} finally {
+				releaseReader(reader);
+			}
+		} finally {
+			iis.close();
+		}
+	}
+	
+	//Box filter: every block of factor x factor pixels is averaged into one pixel (the blocks on the right and bottom edges may be smaller).
+	//Gray images stay gray, any other image is returned as TYPE_3BYTE_BGR.
+	public static BufferedImage downscale(BufferedImage input, int factor) {
+		int width = input.getWidth();
+		int height = input.getHeight();
+		int outWidth = (width + factor - 1) / factor;
+		int outHeight = (height + factor - 1) / factor;
+		boolean gray = input.getType() == BufferedImage.TYPE_BYTE_GRAY;
+		boolean rgbRaster = gray || (input.getType() == BufferedImage.TYPE_3BYTE_BGR) || (input.getType() == BufferedImage.TYPE_INT_RGB); //samples of the raster are R, G, B (or gray): no color model conversion needed
+		int nbBands = gray ? 1 : 3;
 		
-		writeQualityInJPEG(output, quality);
+		BufferedImage output = new BufferedImage(outWidth, outHeight, gray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR);
+		int[] row = new int[rgbRaster ? width * nbBands : width];
+		int[] sums = new int[outWidth * nbBands];
+		int[] outRow = new int[outWidth * nbBands];
+		for (int outY = 0; outY < outHeight; ++outY) {
+			int fromY = outY * factor;
+			int toY = Math.min(height, fromY + factor);
+			Arrays.fill(sums, 0);
+			for (int y = fromY; y < toY; ++y) {
+				if (rgbRaster) {
+					input.getRaster().getPixels(0, y, width, 1, row);
+					for (int x = 0; x < width; ++x) {
+						int o = (x / factor) * nbBands;
+						int i = x * nbBands;
+						for (int b = 0; b < nbBands; ++b) {
+							sums[o + b] += row[i + b];
+						}
+					}
+				} else {
+					input.getRGB(0, y, width, 1, row, 0, width);
+					for (int x = 0; x < width; ++x) {
+						int o = (x / factor) * 3;
+						sums[o] += (row[x] >> 16) & 0xFF;
+						sums[o + 1] += (row[x] >> 8) & 0xFF;
+						sums[o + 2] += row[x] & 0xFF;
+					}
+				}
+			}
+			for (int outX = 0; outX < outWidth; ++outX) {
+				int nbPixels = (Math.min(width, (outX + 1) * factor) - outX * factor) * (toY - fromY);
+				for (int b = 0; b < nbBands; ++b) {
+					outRow[outX * nbBands + b] = (sums[outX * nbBands + b] + nbPixels / 2) / nbPixels;
+				}
+			}
+			output.getRaster().setPixels(0, outY, outWidth, 1, outRow);
+		}
+		return output;
 	}
 	
 	//Save the input image as a jpeg file
 	public static void createJPEG(BufferedImage input, File output, int quality) throws IOException {
-		FileUtils.truncateFile(output);
-		
-		final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
-		writer.setOutput(new FileImageOutputStream(output));
-		
-		ImageWriteParam iwParam = writer.getDefaultWriteParam();
-		iwParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-		iwParam.setCompressionQuality(quality/100f);
-		
-		writer.write(null, new IIOImage(input, null, null), iwParam);
-		writer.dispose();
-		
-		writeQualityInJPEG(output, quality);
+		createJPEG(new IIOImage(input, null, null), output, quality);
 	}
 	
 	
@@ -232,8 +524,52 @@ public class ImageUtils {
 	//Special trick to write the quality in the last byte of the file (because JFIF/EXIF do not have this info)
 	private static void writeQualityInJPEG(File output, int quality) throws IOException {
 		FileOutputStream out = new FileOutputStream(output, true);
-		out.write(quality & 0x7F);
-		out.close();
+		try {
+			out.write(quality & 0x7F);
+		} finally {
+			out.close();
+		}
+	}
+	
+	//-------------------------------------------------------------------------
+	//-- Readers and writers: looked up once per thread, and reset after each use instead of being disposed
+	//-------------------------------------------------------------------------
+	
+	private static final ThreadLocal<ImageReader> _jpegReader = new ThreadLocal<ImageReader>();
+	private static final ThreadLocal<ImageWriter> _jpegWriter = new ThreadLocal<ImageWriter>();
+	
+	//The jpeg reader of the thread, or a new reader for the format of iis when it is not a jpeg (see releaseReader)
+	private static ImageReader getReader(ImageInputStream iis) throws IOException {
+		ImageReader reader = _jpegReader.get();
+		if (reader == null) {
+			reader = ImageIO.getImageReadersByFormatName("jpeg").next();
+			_jpegReader.set(reader);
+		}
+		if (reader.getOriginatingProvider().canDecodeInput(iis)) {
+			return reader;
+		}
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+		if (readers.hasNext() == false) {
+			throw new IOException("Unsupported image format");
+		}
+		return readers.next();
+	}
+	
+	private static void releaseReader(ImageReader reader) {
+		if (reader == _jpegReader.get()) {
+			reader.reset();
+		} else {
+			reader.dispose();
+		}
+	}
+	
+	private static ImageWriter getJPEGWriter() {
+		ImageWriter writer = _jpegWriter.get();
+		if (writer == null) {
+			writer = ImageIO.getImageWritersByFormatName("jpg").next();
+			_jpegWriter.set(writer);
+		}
+		return writer;
 	}
 	
 
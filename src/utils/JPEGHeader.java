@@ -0,0 +1,180 @@
+package utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+//Header only jpeg parser: reads the markers until the first Start Of Scan, without decoding any pixel.
+//It keeps the quantization tables (DQT) and the frame size (SOF).
+public class JPEGHeader {
+	
+	//Standard IJG quantization tables (quality 50), from the JPEG specification (Annex K)
+	private static final int[] STD_LUMINANCE = {
+		16,  11,  10,  16,  24,  40,  51,  61,
+		12,  12,  14,  19,  26,  58,  60,  55,
+		14,  13,  16,  24,  40,  57,  69,  56,
+		14,  17,  22,  29,  51,  87,  80,  62,
+		18,  22,  37,  56,  68, 109, 103,  77,
+		24,  35,  55,  64,  81, 104, 113,  92,
+		49,  64,  78,  87, 103, 121, 120, 101,
+		72,  92,  95,  98, 112, 100, 103,  99
+	};
+	
+	private static final int[] STD_CHROMINANCE = {
+		17,  18,  24,  47,  99,  99,  99,  99,
+		18,  21,  26,  66,  99,  99,  99,  99,
+		24,  26,  56,  99,  99,  99,  99,  99,
+		47,  66,  99,  99,  99,  99,  99,  99,
+		99,  99,  99,  99,  99,  99,  99,  99,
+		99,  99,  99,  99,  99,  99,  99,  99,
+		99,  99,  99,  99,  99,  99,  99,  99,
+		99,  99,  99,  99,  99,  99,  99,  99
+	};
+	
+	private int[][] _quantizationTables = new int[4][]; //by table id, null if not defined
+	private int _width = -1;
+	private int _height = -1;
+	private int _nbComponents = -1;
+	private int _precision = -1;
+	
+	private JPEGHeader() {
+	}
+	
+	public static JPEGHeader read(File file) throws IOException {
+		JPEGHeader header = new JPEGHeader();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		try {
+			header.parse(in);
+		} finally {
+			in.close();
+		}
+		return header;
+	}
+	
+	public int getWidth() {
+		return _width;
+	}
+	
+	public int getHeight() {
+		return _height;
+	}
+	
+	public int getNbComponents() {
+		return _nbComponents;
+	}
+	
+	public int getPrecision() {
+		return _precision;
+	}
+	
+	public boolean hasFrame() {
+		return _width > 0 && _height > 0;
+	}
+	
+	public int[] getQuantizationTable(int id) {
+		return _quantizationTables[id];
+	}
+	
+	//Estimate the IJG quality (1-100) the file was saved with, by comparing its quantization tables with the standard ones.
+	//IJG scales the standard tables by 5000/quality below 50 and by 200-2*quality above, so the average scaling factor gives the quality back.
+	//Returns -1 if the file has no quantization table.
+	public int estimateQuality() {
+		double scaling = 0;
+		int nbTables = 0;
+		for (int id = 0; id < _quantizationTables.length; ++id) {
+			int[] table = _quantizationTables[id];
+			if (table != null) {
+				int[] std = (id == 0) ? STD_LUMINANCE : STD_CHROMINANCE;
+				long sum = 0;
+				long stdSum = 0;
+				for (int i = 0; i < 64; ++i) {
+					sum += table[i];
+					stdSum += std[i];
+				}
+				scaling += (sum * 100.) / stdSum;
+				nbTables++;
+			}
+		}
+		if (nbTables == 0) {
+			return -1;
+		}
+		scaling /= nbTables;
+		
+		double quality = (scaling <= 100.) ? (200. - scaling) / 2. : 5000. / scaling;
+		return Math.max(1, Math.min(100, (int)Math.round(quality)));
+	}
+	
+	//-------------------------------------------------------------------------
+	//-- Parser
+	//-------------------------------------------------------------------------
+	
+	private void parse(DataInputStream in) throws IOException {
+		if ((in.readUnsignedByte() != 0xFF) || (in.readUnsignedByte() != 0xD8)) {
+			throw new IOException("Not a jpeg file (missing SOI)");
+		}
+		try {
+			while (true) {
+				int b = in.readUnsignedByte();
+				if (b != 0xFF) {
+					throw new IOException("Marker expected, found 0x" + String.format("%02X", b));
+				}
+				int marker = in.readUnsignedByte();
+				while (marker == 0xFF) { //fill bytes
+					marker = in.readUnsignedByte();
+				}
+				if ((marker == 0xD9) || (marker == 0xDA)) { //EOI or SOS: end of the header
+					return ;
+				}
+				if ((marker == 0x01) || ((marker >= 0xD0) && (marker <= 0xD7))) { //TEM / RSTn: no length
+					continue;
+				}
+				int length = in.readUnsignedShort() - 2; //the length contains itself
+				if (length < 0) {
+					throw new IOException("Wrong segment length for marker 0x" + String.format("%02X", marker));
+				}
+				if (marker == 0xDB) {
+					parseDQT(in, length);
+				} else if (isSOF(marker)) {
+					parseSOF(in, length);
+				} else {
+					in.skipBytes(length);
+				}
+			}
+		} catch (EOFException e) {
+			//truncated file: keep what has been read
+		}
+	}
+	
+	//Start Of Frame, except DHT (0xC4), JPG (0xC8) and DAC (0xCC) which share the same range
+	private boolean isSOF(int marker) {
+		return ((marker & 0xF0) == 0xC0) && (marker != 0xC4) && (marker != 0xC8) && (marker != 0xCC);
+	}
+	
+	private void parseDQT(DataInputStream in, int length) throws IOException {
+		while (length > 0) {
+			int pqtq = in.readUnsignedByte();
+			int precision = pqtq >> 4; //0 = 8bit values, 1 = 16bit values
+			int id = pqtq & 0x0F;
+			int[] table = new int[64];
+			for (int i = 0; i < 64; ++i) {
+				table[i] = (precision == 0) ? in.readUnsignedByte() : in.readUnsignedShort();
+			}
+			if (id < _quantizationTables.length) {
+				_quantizationTables[id] = table;
+			}
+			length -= 1 + 64 * (precision == 0 ? 1 : 2);
+		}
+	}
+	
+	private void parseSOF(DataInputStream in, int length) throws IOException {
+		_precision = in.readUnsignedByte();
+		_height = in.readUnsignedShort();
+		_width = in.readUnsignedShort();
+		_nbComponents = in.readUnsignedByte();
+		in.skipBytes(length - 6);
+	}
+	
+}
@@ -0,0 +1,68 @@
+package utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+//In memory output stream which can be reset and refilled without reallocating its internal buffer
+public class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+
+	public ReusableByteArrayOutputStream() {
+		super(1024 * 1024);
+	}
+	
+	//Read back what has been written, without copying the internal buffer
+	public synchronized InputStream toInputStream() {
+		return new ByteArrayInputStream(buf, 0, count);
+	}
+	
+	//Exchange the content (and the internal buffers) of the two streams, without copying anything
+	public void swap(ReusableByteArrayOutputStream other) {
+		synchronized (this) {
+			synchronized (other) {
+				byte[] otherBuf = other.buf;
+				int otherCount = other.count;
+				other.buf = buf;
+				other.count = count;
+				buf = otherBuf;
+				count = otherCount;
+			}
+		}
+	}
+	
+	//Replace the content of the buffer by the content of the given file (the buffer is only reallocated when it is too small)
+	public synchronized void readFrom(File input) throws IOException {
+		long length = input.length();
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("File too big: " + input.getAbsolutePath());
+		}
+		if (buf.length < length) {
+			buf = new byte[(int)length];
+		}
+		count = 0;
+		FileInputStream in = new FileInputStream(input);
+		try {
+			int read;
+			while ((count < length) && ((read = in.read(buf, count, (int)length - count)) > 0)) {
+				count += read;
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	//Dump the content of the buffer into the given file (the file is overwritten)
+	public synchronized void writeTo(File output) throws IOException {
+		FileOutputStream out = new FileOutputStream(output);
+		try {
+			out.write(buf, 0, count);
+		} finally {
+			out.close();
+		}
+	}
+	
+}